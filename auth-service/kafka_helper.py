@@ -3,7 +3,6 @@ import json
 import logging
 from random import randint
 from time import sleep
-from uuid import uuid4
 
 from confluent_kafka import Consumer, Producer
 from confluent_kafka.schema_registry import SchemaRegistryClient
@@ -43,7 +42,9 @@ def process_messages(payment_schema, update_payment_schema, bootstrap_servers, g
     consumer = instrument_consumer(consumer, tracer_provider)
     logging.info(f"consumer: {consumer}")
 
-    producer = Producer(kafka_conf)
+    # librdkafka defaults to consistent_random (crc32); murmur2_random matches the Java and KafkaJS
+    # producers, so every service sends a given requestId to the same partition of update-payment-topic
+    producer = Producer({**kafka_conf, 'partitioner': 'murmur2_random'})
     logging.info(f"producer: {producer}")
 
     while True:
@@ -106,7 +107,7 @@ def process_messages(payment_schema, update_payment_schema, bootstrap_servers, g
             logging.info(f"update_payment: {todict(update_payment)}")
 
             producer.produce(topic=producer_topic,
-                             key=string_serializer(str(uuid4())),
+                             key=string_serializer(payment_record.get_requestId()),
                              value=avro_serializer(update_payment, SerializationContext(producer_topic, MessageField.VALUE)),
                              on_delivery=delivery_report,
                              headers=msg.headers())
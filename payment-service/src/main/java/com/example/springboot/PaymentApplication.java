@@ -4,12 +4,16 @@ import com.example.springboot.config.PaymentProperties;
 import com.example.springboot.model.NotificationResponseDto;
 import com.example.springboot.model.UserAuth;
 import com.example.springboot.repository.UserRepository;
+import com.example.springboot.service.PartitionOffsetTracker;
 import io.r2dbc.spi.ConnectionFactory;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.kafka.ConcurrentKafkaListenerContainerFactoryConfigurer;
 import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
@@ -17,20 +21,28 @@ import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
 import org.springframework.data.redis.core.ReactiveRedisOperations;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.RedisSerializationContext;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.config.TopicBuilder;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaProducerFactory;
 import org.springframework.kafka.core.KafkaAdmin;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.DeadLetterPublishingRecoverer;
+import org.springframework.kafka.listener.DefaultErrorHandler;
 import org.springframework.kafka.support.DefaultKafkaHeaderMapper;
 import org.springframework.kafka.support.converter.MessagingMessageConverter;
 import org.springframework.r2dbc.connection.init.ConnectionFactoryInitializer;
 import org.springframework.r2dbc.connection.init.ResourceDatabasePopulator;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.util.backoff.FixedBackOff;
 import org.springframework.web.reactive.function.server.RouterFunction;
 import org.springframework.web.reactive.function.server.RouterFunctions;
 import org.springframework.web.reactive.function.server.ServerResponse;
@@ -39,6 +51,7 @@ import reactor.core.publisher.Flux;
 import java.math.BigDecimal;
 import java.net.URI;
 import java.util.Arrays;
+import java.util.Map;
 
 import static org.springframework.web.reactive.function.server.RequestPredicates.GET;
 
@@ -64,6 +77,11 @@ public class PaymentApplication {
         return new ReactiveRedisTemplate<>(factory, context);
     }
 
+    @Bean
+    ReactiveRedisMessageListenerContainer redisMessageListenerContainer(ReactiveRedisConnectionFactory factory) {
+        return new ReactiveRedisMessageListenerContainer(factory);
+    }
+
     @Bean
     ConnectionFactoryInitializer initializer(ConnectionFactory connectionFactory) {
         ConnectionFactoryInitializer initializer = new ConnectionFactoryInitializer();
@@ -102,14 +120,50 @@ public class PaymentApplication {
     }
 
     @Bean
-    public KafkaAdmin.NewTopics createTopics() {
+    public KafkaAdmin.NewTopics createTopics(PaymentProperties paymentProperties) {
         return new KafkaAdmin.NewTopics(
                 TopicBuilder.name("payment-topic")
+                        .partitions(paymentProperties.getTopicPartitions())
                         .build(),
                 TopicBuilder.name("update-payment-topic")
+                        .partitions(paymentProperties.getTopicPartitions())
                         .build());
     }
 
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<Object, Object> batchKafkaListenerContainerFactory(ConcurrentKafkaListenerContainerFactoryConfigurer configurer,
+                                                                                                     KafkaProperties kafkaProperties,
+                                                                                                     PaymentProperties paymentProperties,
+                                                                                                     DeadLetterPublishingRecoverer deadLetterPublishingRecoverer) {
+        Map<String, Object> consumerProperties = kafkaProperties.buildConsumerProperties();
+        consumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, paymentProperties.getUpdateBatchSize());
+        consumerProperties.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, paymentProperties.getUpdateBatchWaitInMillis());
+        consumerProperties.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, paymentProperties.getUpdateBatchMinBytes());
+        ConcurrentKafkaListenerContainerFactory<Object, Object> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        configurer.configure(factory, new DefaultKafkaConsumerFactory<>(consumerProperties));
+        factory.setBatchListener(true);
+        factory.setCommonErrorHandler(new DefaultErrorHandler(deadLetterPublishingRecoverer, new FixedBackOff(6000, 2)));
+        return factory;
+    }
+
+    // the topic the @RetryableTopic listener dead-letters to; the partition is left to the producer since the
+    // dead-letter topic may have fewer partitions than the one the record came from
+    @Bean
+    public DeadLetterPublishingRecoverer deadLetterPublishingRecoverer(KafkaTemplate<String, Object> kafkaTemplate) {
+        return new DeadLetterPublishingRecoverer(kafkaTemplate, (r, e) -> new TopicPartition(r.topic() + "-dlt", -1));
+    }
+
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<Object, Object> manualAckKafkaListenerContainerFactory(ConcurrentKafkaListenerContainerFactoryConfigurer configurer,
+                                                                                                        ConsumerFactory<Object, Object> consumerFactory,
+                                                                                                        PartitionOffsetTracker partitionOffsetTracker) {
+        ConcurrentKafkaListenerContainerFactory<Object, Object> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        configurer.configure(factory, consumerFactory);
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+        factory.getContainerProperties().setConsumerRebalanceListener(partitionOffsetTracker);
+        return factory;
+    }
+
     @Bean
     public ProducerFactory<String, Object> producerFactory(KafkaProperties kafkaProperties) {
         return new DefaultKafkaProducerFactory<>(kafkaProperties.buildProducerProperties());
@@ -8,6 +8,86 @@ public class PaymentProperties {
     @NotNull
     private long expirePaymentInSecs = 60;
 
+    private int expireBatchSize = 500;
+
+    private long expireTimerTickInMillis = 50;
+
+    private long expireSweepDelayInMillis = 60000;
+
+    private int expireSweepShards = 16;
+
+    private long outboxRelayDelayInMillis = 100;
+
+    private int outboxBatchSize = 500;
+
+    private long outboxRetentionInSecs = 3600;
+
+    private int outboxMaxInFlight = 64;
+
+    private long outboxClaimLeaseInMillis = 30000;
+
+    private long outboxRetryDelayInMillis = 1000;
+
+    private int outboxMaxAttempts = 10;
+
+    private int topicPartitions = 6;
+
+    private UpdateConsumerMode updateConsumerMode = UpdateConsumerMode.BATCH;
+
+    private int updateMaxInFlightPerPartition = 256;
+
+    private int updateDedupeMaxSize = 100000;
+
+    private long updateDedupeTtlInSecs = 600;
+
+    private boolean updateDedupeRedisEnabled = false;
+
+    private long updateRetryMaxAttempts = 3;
+
+    private long updateRetryMinBackoffInMillis = 50;
+
+    private long updateRetryMaxBackoffInMillis = 1000;
+
+    private double updateRetryJitter = 0.5;
+
+    private int updateBatchSize = 500;
+
+    private int updateBatchWaitInMillis = 100;
+
+    private int updateBatchMinBytes = 16384;
+
+    private int accountLaneStripes = 64;
+
+    private int accountLaneBatchSize = 100;
+
+    private long ledgerCompactionDelayInMillis = 60000;
+
+    private int userCacheMaxSize = 10000;
+
+    private long userCacheTtlInSecs = 60;
+
+    private int passwordHashingThreads = Runtime.getRuntime().availableProcessors();
+
+    private int passwordHashingQueueSize = 100;
+
+    private int dashboardBufferMaxPerUser = 100;
+
+    private int dashboardBufferMaxTotal = 10000;
+
+    private long dashboardBufferTtlInSecs = 300;
+
+    private int dashboardPageSize = 50;
+
+    private int dashboardMaxPageSize = 500;
+
+    private boolean dashboardBroadcastEnabled = true;
+
+    private int dashboardBroadcastBatchSize = 100;
+
+    private long dashboardBroadcastBatchWindowInMillis = 50;
+
+    private long dashboardBroadcastStreamMaxLength = 10000;
+
     public void setExpirePaymentInSecs(long expirePaymentInSecs) {
         this.expirePaymentInSecs = expirePaymentInSecs;
     }
@@ -15,4 +95,328 @@ public class PaymentProperties {
     public long getExpirePaymentInSecs() {
         return expirePaymentInSecs;
     }
+
+    public int getExpireBatchSize() {
+        return expireBatchSize;
+    }
+
+    public void setExpireBatchSize(int expireBatchSize) {
+        this.expireBatchSize = expireBatchSize;
+    }
+
+    public long getExpireTimerTickInMillis() {
+        return expireTimerTickInMillis;
+    }
+
+    public void setExpireTimerTickInMillis(long expireTimerTickInMillis) {
+        this.expireTimerTickInMillis = expireTimerTickInMillis;
+    }
+
+    public long getExpireSweepDelayInMillis() {
+        return expireSweepDelayInMillis;
+    }
+
+    public void setExpireSweepDelayInMillis(long expireSweepDelayInMillis) {
+        this.expireSweepDelayInMillis = expireSweepDelayInMillis;
+    }
+
+    public int getExpireSweepShards() {
+        return expireSweepShards;
+    }
+
+    public void setExpireSweepShards(int expireSweepShards) {
+        this.expireSweepShards = expireSweepShards;
+    }
+
+    public long getOutboxRelayDelayInMillis() {
+        return outboxRelayDelayInMillis;
+    }
+
+    public void setOutboxRelayDelayInMillis(long outboxRelayDelayInMillis) {
+        this.outboxRelayDelayInMillis = outboxRelayDelayInMillis;
+    }
+
+    public int getOutboxBatchSize() {
+        return outboxBatchSize;
+    }
+
+    public void setOutboxBatchSize(int outboxBatchSize) {
+        this.outboxBatchSize = outboxBatchSize;
+    }
+
+    public long getOutboxRetentionInSecs() {
+        return outboxRetentionInSecs;
+    }
+
+    public void setOutboxRetentionInSecs(long outboxRetentionInSecs) {
+        this.outboxRetentionInSecs = outboxRetentionInSecs;
+    }
+
+    public int getOutboxMaxInFlight() {
+        return outboxMaxInFlight;
+    }
+
+    public void setOutboxMaxInFlight(int outboxMaxInFlight) {
+        this.outboxMaxInFlight = outboxMaxInFlight;
+    }
+
+    public long getOutboxClaimLeaseInMillis() {
+        return outboxClaimLeaseInMillis;
+    }
+
+    public void setOutboxClaimLeaseInMillis(long outboxClaimLeaseInMillis) {
+        this.outboxClaimLeaseInMillis = outboxClaimLeaseInMillis;
+    }
+
+    public long getOutboxRetryDelayInMillis() {
+        return outboxRetryDelayInMillis;
+    }
+
+    public void setOutboxRetryDelayInMillis(long outboxRetryDelayInMillis) {
+        this.outboxRetryDelayInMillis = outboxRetryDelayInMillis;
+    }
+
+    public int getOutboxMaxAttempts() {
+        return outboxMaxAttempts;
+    }
+
+    public void setOutboxMaxAttempts(int outboxMaxAttempts) {
+        this.outboxMaxAttempts = outboxMaxAttempts;
+    }
+
+    public int getTopicPartitions() {
+        return topicPartitions;
+    }
+
+    public void setTopicPartitions(int topicPartitions) {
+        this.topicPartitions = topicPartitions;
+    }
+
+    public UpdateConsumerMode getUpdateConsumerMode() {
+        return updateConsumerMode;
+    }
+
+    public void setUpdateConsumerMode(UpdateConsumerMode updateConsumerMode) {
+        this.updateConsumerMode = updateConsumerMode;
+    }
+
+    public int getUpdateMaxInFlightPerPartition() {
+        return updateMaxInFlightPerPartition;
+    }
+
+    public void setUpdateMaxInFlightPerPartition(int updateMaxInFlightPerPartition) {
+        this.updateMaxInFlightPerPartition = updateMaxInFlightPerPartition;
+    }
+
+    public int getUpdateDedupeMaxSize() {
+        return updateDedupeMaxSize;
+    }
+
+    public void setUpdateDedupeMaxSize(int updateDedupeMaxSize) {
+        this.updateDedupeMaxSize = updateDedupeMaxSize;
+    }
+
+    public long getUpdateDedupeTtlInSecs() {
+        return updateDedupeTtlInSecs;
+    }
+
+    public void setUpdateDedupeTtlInSecs(long updateDedupeTtlInSecs) {
+        this.updateDedupeTtlInSecs = updateDedupeTtlInSecs;
+    }
+
+    public boolean isUpdateDedupeRedisEnabled() {
+        return updateDedupeRedisEnabled;
+    }
+
+    public void setUpdateDedupeRedisEnabled(boolean updateDedupeRedisEnabled) {
+        this.updateDedupeRedisEnabled = updateDedupeRedisEnabled;
+    }
+
+    public long getUpdateRetryMaxAttempts() {
+        return updateRetryMaxAttempts;
+    }
+
+    public void setUpdateRetryMaxAttempts(long updateRetryMaxAttempts) {
+        this.updateRetryMaxAttempts = updateRetryMaxAttempts;
+    }
+
+    public long getUpdateRetryMinBackoffInMillis() {
+        return updateRetryMinBackoffInMillis;
+    }
+
+    public void setUpdateRetryMinBackoffInMillis(long updateRetryMinBackoffInMillis) {
+        this.updateRetryMinBackoffInMillis = updateRetryMinBackoffInMillis;
+    }
+
+    public long getUpdateRetryMaxBackoffInMillis() {
+        return updateRetryMaxBackoffInMillis;
+    }
+
+    public void setUpdateRetryMaxBackoffInMillis(long updateRetryMaxBackoffInMillis) {
+        this.updateRetryMaxBackoffInMillis = updateRetryMaxBackoffInMillis;
+    }
+
+    public double getUpdateRetryJitter() {
+        return updateRetryJitter;
+    }
+
+    public void setUpdateRetryJitter(double updateRetryJitter) {
+        this.updateRetryJitter = updateRetryJitter;
+    }
+
+    public int getUpdateBatchSize() {
+        return updateBatchSize;
+    }
+
+    public void setUpdateBatchSize(int updateBatchSize) {
+        this.updateBatchSize = updateBatchSize;
+    }
+
+    public int getUpdateBatchWaitInMillis() {
+        return updateBatchWaitInMillis;
+    }
+
+    public void setUpdateBatchWaitInMillis(int updateBatchWaitInMillis) {
+        this.updateBatchWaitInMillis = updateBatchWaitInMillis;
+    }
+
+    public int getUpdateBatchMinBytes() {
+        return updateBatchMinBytes;
+    }
+
+    public void setUpdateBatchMinBytes(int updateBatchMinBytes) {
+        this.updateBatchMinBytes = updateBatchMinBytes;
+    }
+
+    public int getAccountLaneStripes() {
+        return accountLaneStripes;
+    }
+
+    public void setAccountLaneStripes(int accountLaneStripes) {
+        this.accountLaneStripes = accountLaneStripes;
+    }
+
+    public int getAccountLaneBatchSize() {
+        return accountLaneBatchSize;
+    }
+
+    public void setAccountLaneBatchSize(int accountLaneBatchSize) {
+        this.accountLaneBatchSize = accountLaneBatchSize;
+    }
+
+    public long getLedgerCompactionDelayInMillis() {
+        return ledgerCompactionDelayInMillis;
+    }
+
+    public void setLedgerCompactionDelayInMillis(long ledgerCompactionDelayInMillis) {
+        this.ledgerCompactionDelayInMillis = ledgerCompactionDelayInMillis;
+    }
+
+    public int getUserCacheMaxSize() {
+        return userCacheMaxSize;
+    }
+
+    public void setUserCacheMaxSize(int userCacheMaxSize) {
+        this.userCacheMaxSize = userCacheMaxSize;
+    }
+
+    public long getUserCacheTtlInSecs() {
+        return userCacheTtlInSecs;
+    }
+
+    public void setUserCacheTtlInSecs(long userCacheTtlInSecs) {
+        this.userCacheTtlInSecs = userCacheTtlInSecs;
+    }
+
+    public int getPasswordHashingThreads() {
+        return passwordHashingThreads;
+    }
+
+    public void setPasswordHashingThreads(int passwordHashingThreads) {
+        this.passwordHashingThreads = passwordHashingThreads;
+    }
+
+    public int getPasswordHashingQueueSize() {
+        return passwordHashingQueueSize;
+    }
+
+    public void setPasswordHashingQueueSize(int passwordHashingQueueSize) {
+        this.passwordHashingQueueSize = passwordHashingQueueSize;
+    }
+
+    public int getDashboardBufferMaxPerUser() {
+        return dashboardBufferMaxPerUser;
+    }
+
+    public void setDashboardBufferMaxPerUser(int dashboardBufferMaxPerUser) {
+        this.dashboardBufferMaxPerUser = dashboardBufferMaxPerUser;
+    }
+
+    public int getDashboardBufferMaxTotal() {
+        return dashboardBufferMaxTotal;
+    }
+
+    public void setDashboardBufferMaxTotal(int dashboardBufferMaxTotal) {
+        this.dashboardBufferMaxTotal = dashboardBufferMaxTotal;
+    }
+
+    public long getDashboardBufferTtlInSecs() {
+        return dashboardBufferTtlInSecs;
+    }
+
+    public void setDashboardBufferTtlInSecs(long dashboardBufferTtlInSecs) {
+        this.dashboardBufferTtlInSecs = dashboardBufferTtlInSecs;
+    }
+
+    public int getDashboardPageSize() {
+        return dashboardPageSize;
+    }
+
+    public void setDashboardPageSize(int dashboardPageSize) {
+        this.dashboardPageSize = dashboardPageSize;
+    }
+
+    public int getDashboardMaxPageSize() {
+        return dashboardMaxPageSize;
+    }
+
+    public void setDashboardMaxPageSize(int dashboardMaxPageSize) {
+        this.dashboardMaxPageSize = dashboardMaxPageSize;
+    }
+
+    public boolean isDashboardBroadcastEnabled() {
+        return dashboardBroadcastEnabled;
+    }
+
+    public void setDashboardBroadcastEnabled(boolean dashboardBroadcastEnabled) {
+        this.dashboardBroadcastEnabled = dashboardBroadcastEnabled;
+    }
+
+    public int getDashboardBroadcastBatchSize() {
+        return dashboardBroadcastBatchSize;
+    }
+
+    public void setDashboardBroadcastBatchSize(int dashboardBroadcastBatchSize) {
+        this.dashboardBroadcastBatchSize = dashboardBroadcastBatchSize;
+    }
+
+    public long getDashboardBroadcastBatchWindowInMillis() {
+        return dashboardBroadcastBatchWindowInMillis;
+    }
+
+    public void setDashboardBroadcastBatchWindowInMillis(long dashboardBroadcastBatchWindowInMillis) {
+        this.dashboardBroadcastBatchWindowInMillis = dashboardBroadcastBatchWindowInMillis;
+    }
+
+    public long getDashboardBroadcastStreamMaxLength() {
+        return dashboardBroadcastStreamMaxLength;
+    }
+
+    public void setDashboardBroadcastStreamMaxLength(long dashboardBroadcastStreamMaxLength) {
+        this.dashboardBroadcastStreamMaxLength = dashboardBroadcastStreamMaxLength;
+    }
+
+    public enum UpdateConsumerMode {
+        RECORD, BATCH, KEY_ORDERED
+    }
 }
@@ -2,6 +2,7 @@ package com.example.springboot.config;
 
 import com.example.springboot.repository.UserRepository;
 import com.example.springboot.service.CustomOidcUserService;
+import com.example.springboot.service.PasswordHasher;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.exception.ExceptionUtils;
@@ -15,6 +16,9 @@ import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.authentication.UserDetailsRepositoryReactiveAuthenticationManager;
 import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.method.configuration.EnableReactiveMethodSecurity;
 import org.springframework.security.config.annotation.web.reactive.EnableWebFluxSecurity;
@@ -37,6 +41,7 @@ import reactor.core.publisher.Mono;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.concurrent.RejectedExecutionException;
 
 @Configuration
 @EnableWebFluxSecurity
@@ -120,6 +125,19 @@ public class SecurityConfiguration {
                 .switchIfEmpty(Mono.error(new UsernameNotFoundException("Username not found: "+username)));
     }
 
+    @Bean
+    ReactiveAuthenticationManager authenticationManager(ReactiveUserDetailsService userDetailsService, PasswordHasher passwordHasher) {
+        UserDetailsRepositoryReactiveAuthenticationManager authenticationManager = new UserDetailsRepositoryReactiveAuthenticationManager(userDetailsService);
+        // form login verifies passwords on the bounded hashing scheduler rather than the shared boundedElastic one
+        authenticationManager.setPasswordEncoder(passwordHasher.getPasswordEncoder());
+        authenticationManager.setScheduler(passwordHasher.getScheduler());
+        return authentication -> authenticationManager.authenticate(authentication)
+                .onErrorMap(RejectedExecutionException.class, e -> {
+                    passwordHasher.recordMatchesRejected();
+                    return new AuthenticationServiceException("Too many login attempts, try again later", e);
+                });
+    }
+
     @Bean
     public PasswordEncoder encoder() {
         return PasswordEncoderFactories.createDelegatingPasswordEncoder();
@@ -4,11 +4,12 @@ import com.example.springboot.model.UserAuth;
 import com.example.springboot.model.UserRequestDto;
 import com.example.springboot.model.UserResponseDto;
 import com.example.springboot.repository.UserRepository;
+import com.example.springboot.service.PasswordHasher;
+import com.example.springboot.service.UserCache;
 import jakarta.validation.Valid;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -22,18 +23,21 @@ import java.net.URI;
 public class AccountController extends AbstractController {
     private final UserRepository userRepository;
 
-    private final PasswordEncoder passwordEncoder;
+    private final UserCache userCache;
 
-    public AccountController(UserRepository userRepository, PasswordEncoder passwordEncoder) {
+    private final PasswordHasher passwordHasher;
+
+    public AccountController(UserRepository userRepository, UserCache userCache, PasswordHasher passwordHasher) {
         this.userRepository = userRepository;
-        this.passwordEncoder = passwordEncoder;
+        this.userCache = userCache;
+        this.passwordHasher = passwordHasher;
     }
 
     @GetMapping("/api/v1/account")
     public Mono<ResponseEntity<UserResponseDto>> index(Authentication authentication) {
         String username = getUsername(authentication);
-        return userRepository.findById(username)
-                .map(UserResponseDto::new)
+        return userCache.findById(username)
+                .zipWith(userRepository.findBalance(username), UserResponseDto::new)
                 .map(ResponseEntity::ok)
                 .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, String.format("Username not found: %s", username))));
     }
@@ -43,14 +47,14 @@ public class AccountController extends AbstractController {
         if (!userRequestDto.password().equals(userRequestDto.confirmPassword())) {
             return Mono.error(() -> new ResponseStatusException(HttpStatus.BAD_REQUEST, "Passwords don't match"));
         }
-        return userRepository.findById(userRequestDto.username())
-                .flatMap(u -> Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Username already exists: "+u.getUsername())))
-                .then(Mono.just(userRequestDto)
-                            .map(u -> new UserAuth(u, passwordEncoder.encode(u.password())))
-                            .flatMap(userRepository::save)
+        return userCache.findById(userRequestDto.username())
+                .flatMap(u -> Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Username already exists: "+u.username())))
+                .then(passwordHasher.encode(userRequestDto.password())
+                            .map(password -> new UserAuth(userRequestDto, password))
+                            .flatMap(u -> userRepository.save(u)
+                                    .onErrorResume(ex -> Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Failed to create user: " + ex.getLocalizedMessage(), ex))))
                             .map(UserResponseDto::new)
                             .map(p -> ResponseEntity.status(HttpStatus.CREATED).location(URI.create("/api/v1/account")).body(p))
-                            .onErrorResume(ex -> Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Failed to create user: " + ex.getLocalizedMessage(), ex)))
                 );
     }
 }
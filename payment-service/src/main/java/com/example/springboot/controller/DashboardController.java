@@ -3,23 +3,29 @@ package com.example.springboot.controller;
 import com.example.springboot.model.NotificationRequestDto;
 import com.example.springboot.model.NotificationResponseDto;
 import com.example.springboot.model.ResponsePaymentDto;
+import com.example.springboot.service.PaymentChange;
 import com.example.springboot.service.PaymentService;
 import jakarta.validation.Valid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.*;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
-import java.time.Duration;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.List;
+import java.util.function.Function;
 
 @RestController
 public class DashboardController extends AbstractController {
@@ -31,24 +37,59 @@ public class DashboardController extends AbstractController {
     }
 
     @GetMapping(value = "/api/v1/dashboard/payments", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public ResponseEntity<Flux<ResponsePaymentDto>> getPayments(Authentication authentication) {
+    public ResponseEntity<Flux<ServerSentEvent<ResponsePaymentDto>>> getPayments(Authentication authentication,
+                                                                                 @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
         String username = getUsername(authentication);
-        log.info("Returning payments for: {}", username);
+        log.info("Returning payments for: {} - lastEventId: {}", username, lastEventId);
         HttpHeaders httpHeaders = new HttpHeaders();
         httpHeaders.setContentType(MediaType.TEXT_EVENT_STREAM);
         httpHeaders.setCacheControl(CacheControl.noCache());
         httpHeaders.setConnection("keep-alive");
         httpHeaders.add("Content-Encoding", "none");
-        Flux<Long> interval = Flux.interval(Duration.ofSeconds(1));
-        AtomicBoolean firstVisit = new AtomicBoolean(true);
         return ResponseEntity.ok()
                 .headers(httpHeaders)
-                .body(interval.flatMap(p -> paymentService.getAllByUsernameFrom(username, firstVisit))
-                        .doOnNext(p -> log.debug("Getting payment: {}", p)));
+                .body(Flux.deferContextual(context -> {
+                    // live changes are buffered from before the snapshot is read, then delivered after it
+                    Sinks.Many<PaymentChange> live = Sinks.many().unicast().onBackpressureBuffer();
+                    Disposable subscription = paymentService.getPaymentChangesByUsername(username)
+                            .contextWrite(context)
+                            .subscribe(live::tryEmitNext, live::tryEmitError, live::tryEmitComplete);
+                    Flux<ServerSentEvent<ResponsePaymentDto>> initial = paymentService.replayPaymentChanges(username, lastEventId)
+                            .map(changes -> Flux.fromIterable(changes).map(DashboardController::toEvent))
+                            .switchIfEmpty(Mono.fromSupplier(() -> paymentService.getAllByUsernameFrom(username)
+                                    .collectList()
+                                    .flatMapMany(DashboardController::toSnapshotEvents)))
+                            .flatMapMany(Function.identity());
+                    return Flux.concat(initial, live.asFlux().map(DashboardController::toEvent))
+                            .doFinally(signal -> subscription.dispose());
+                })
+                        .doOnNext(e -> log.debug("Getting payment: {}", e.data())));
+    }
+
+    private static ServerSentEvent<ResponsePaymentDto> toEvent(PaymentChange change) {
+        return ServerSentEvent.builder(change.payment())
+                .id(change.eventId())
+                .build();
+    }
+
+    // the whole page shares one sequence, so only its last event may move the client's Last-Event-ID forward
+    private static Flux<ServerSentEvent<ResponsePaymentDto>> toSnapshotEvents(List<PaymentChange> page) {
+        return Flux.fromIterable(page)
+                .index()
+                .map(e -> e.getT1() == page.size() - 1 ? toEvent(e.getT2()) : ServerSentEvent.builder(e.getT2().payment()).build());
+    }
+
+    @GetMapping("/api/v1/dashboard/payments/history")
+    public Flux<ResponsePaymentDto> getPaymentsHistory(Authentication authentication,
+                                                       @RequestParam String before,
+                                                       @RequestParam(required = false) Integer size) {
+        String username = getUsername(authentication);
+        log.info("Returning payments for: {} - before: {}", username, before);
+        return paymentService.getPaymentsBefore(before, size);
     }
 
     @GetMapping(value = "/api/v1/dashboard/notifications", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public ResponseEntity<Flux<NotificationResponseDto>> getNotifications(Authentication authentication) {
+    public ResponseEntity<Flux<ServerSentEvent<NotificationResponseDto>>> getNotifications(Authentication authentication) {
         String username = getUsername(authentication);
         log.info("Returning notifications for: {}", username);
         HttpHeaders httpHeaders = new HttpHeaders();
@@ -56,10 +97,9 @@ public class DashboardController extends AbstractController {
         httpHeaders.setCacheControl(CacheControl.noCache());
         httpHeaders.setConnection("keep-alive");
         httpHeaders.add("Content-Encoding", "none");
-        Flux<Long> interval = Flux.interval(Duration.ofSeconds(2));
         return ResponseEntity.ok()
                 .headers(httpHeaders)
-                .body(interval.flatMap(p -> paymentService.getNotificationsByUsername(username))
+                .body(paymentService.listenNotificationsByUsername(username)
                         .doOnNext(n -> log.info("Getting notification: {}", n)));
     }
 
@@ -0,0 +1,70 @@
+package com.example.springboot.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.relational.core.mapping.Table;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+@Table("balance_snapshot")
+public class BalanceSnapshot {
+    @Id
+    private Long id;
+
+    private String username;
+
+    private BigDecimal balance;
+
+    private Long lastEntryId;
+
+    private Instant createdAt;
+
+    public BalanceSnapshot() {}
+
+    public BalanceSnapshot(String username, BigDecimal balance, Long lastEntryId) {
+        this.username = username;
+        this.balance = balance;
+        this.lastEntryId = lastEntryId;
+        this.createdAt = Instant.now();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public BigDecimal getBalance() {
+        return balance;
+    }
+
+    public void setBalance(BigDecimal balance) {
+        this.balance = balance;
+    }
+
+    public Long getLastEntryId() {
+        return lastEntryId;
+    }
+
+    public void setLastEntryId(Long lastEntryId) {
+        this.lastEntryId = lastEntryId;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Instant createdAt) {
+        this.createdAt = createdAt;
+    }
+}
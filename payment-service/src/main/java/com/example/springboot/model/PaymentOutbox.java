@@ -0,0 +1,187 @@
+package com.example.springboot.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.relational.core.mapping.Table;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+@Table("payment_outbox")
+public class PaymentOutbox {
+    @Id
+    private Long id;
+
+    private String requestId;
+
+    private BigDecimal total;
+
+    private String status;
+
+    private String usernameFrom;
+
+    private String usernameFromAddress;
+
+    private String usernameTo;
+
+    private String usernameToAddress;
+
+    private Instant createdAt;
+
+    private Instant sentAt;
+
+    private String traceId;
+
+    private String spanId;
+
+    private int attempts;
+
+    private Instant claimedUntil;
+
+    private Instant deadLetteredAt;
+
+    public PaymentOutbox() {}
+
+    public PaymentOutbox(ResponsePaymentDto payment) {
+        this.requestId = payment.requestId();
+        this.total = payment.total();
+        this.status = payment.status().name();
+        this.usernameFrom = payment.usernameFrom();
+        this.usernameFromAddress = payment.usernameFromAddress();
+        this.usernameTo = payment.usernameTo();
+        this.usernameToAddress = payment.usernameToAddress();
+        this.createdAt = Instant.now();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+
+    public BigDecimal getTotal() {
+        return total;
+    }
+
+    public void setTotal(BigDecimal total) {
+        this.total = total;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getUsernameFrom() {
+        return usernameFrom;
+    }
+
+    public void setUsernameFrom(String usernameFrom) {
+        this.usernameFrom = usernameFrom;
+    }
+
+    public String getUsernameFromAddress() {
+        return usernameFromAddress;
+    }
+
+    public void setUsernameFromAddress(String usernameFromAddress) {
+        this.usernameFromAddress = usernameFromAddress;
+    }
+
+    public String getUsernameTo() {
+        return usernameTo;
+    }
+
+    public void setUsernameTo(String usernameTo) {
+        this.usernameTo = usernameTo;
+    }
+
+    public String getUsernameToAddress() {
+        return usernameToAddress;
+    }
+
+    public void setUsernameToAddress(String usernameToAddress) {
+        this.usernameToAddress = usernameToAddress;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Instant createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public Instant getSentAt() {
+        return sentAt;
+    }
+
+    public void setSentAt(Instant sentAt) {
+        this.sentAt = sentAt;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public void setTraceId(String traceId) {
+        this.traceId = traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public void setSpanId(String spanId) {
+        this.spanId = spanId;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public Instant getClaimedUntil() {
+        return claimedUntil;
+    }
+
+    public void setClaimedUntil(Instant claimedUntil) {
+        this.claimedUntil = claimedUntil;
+    }
+
+    public Instant getDeadLetteredAt() {
+        return deadLetteredAt;
+    }
+
+    public void setDeadLetteredAt(Instant deadLetteredAt) {
+        this.deadLetteredAt = deadLetteredAt;
+    }
+
+    @Override
+    public String toString() {
+        return "PaymentOutbox{" +
+                "id=" + id +
+                ", requestId='" + requestId + '\'' +
+                ", status='" + status + '\'' +
+                ", createdAt=" + createdAt +
+                ", sentAt=" + sentAt +
+                ", attempts=" + attempts +
+                ", traceId='" + traceId + '\'' +
+                '}';
+    }
+}
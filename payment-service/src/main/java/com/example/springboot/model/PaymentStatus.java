@@ -1,10 +1,21 @@
 package com.example.springboot.model;
 
+import java.util.EnumSet;
+import java.util.Set;
+
 public enum PaymentStatus {
     PROCESSING,
     REPROCESSING,
     WAITING_FOR_USER_CONFIRMATION,
     COMPLETED,
     INSUFFICIENT_RESOURCES,
-    DECLINED
+    DECLINED;
+
+    public static Set<PaymentStatus> pending() {
+        return EnumSet.of(PROCESSING, REPROCESSING, WAITING_FOR_USER_CONFIRMATION);
+    }
+
+    public boolean isPending() {
+        return pending().contains(this);
+    }
 }
@@ -16,14 +16,14 @@ public record ResponsePaymentDto(String requestId,
                                  Instant processedAt,
                                  String message,
                                  BigDecimal updatedBalanceUsernameFrom) {
-    public ResponsePaymentDto(Payment payment, UserAuth usernameFrom, UserAuth usernameTo) {
+    public ResponsePaymentDto(Payment payment, UserProfile usernameFrom, UserProfile usernameTo) {
         this(payment.getRequestId(),
                 payment.getTotal(),
                 payment.getStatus(),
-                usernameFrom.getUsername(),
-                usernameTo.getUsername(),
-                usernameFrom.getAddress(),
-                usernameTo.getAddress(),
+                usernameFrom.username(),
+                usernameTo.username(),
+                usernameFrom.address(),
+                usernameTo.address(),
                 payment.getCreatedAt(),
                 payment.getProcessedAt(),
                 payment.getMessage(),
@@ -51,13 +51,12 @@ public class UserAuth implements UserDetails {
         this(userRequestDto.username(), new BigDecimal("1000.00"), userRequestDto.address(), password, userRequestDto.fullName());
     }
 
-    public void updateBalance(UserAuth to, BigDecimal totalPayment) {
-        to.balance = to.balance.add(totalPayment);
-        this.balance = balance.subtract(totalPayment);
-    }
-
     @Override
     public Collection<? extends GrantedAuthority> getAuthorities() {
+        return authorities(username);
+    }
+
+    public static Collection<? extends GrantedAuthority> authorities(String username) {
         if (username.equals("admin")) {
             return Collections.singletonList(new SimpleGrantedAuthority("ADMIN"));
         }
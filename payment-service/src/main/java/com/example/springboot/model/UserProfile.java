@@ -0,0 +1,15 @@
+package com.example.springboot.model;
+
+import org.springframework.security.core.GrantedAuthority;
+
+import java.util.Collection;
+
+public record UserProfile(String username, String fullName, String address) {
+    public UserProfile(UserAuth userAuth) {
+        this(userAuth.getUsername(), userAuth.getFullName(), userAuth.getAddress());
+    }
+
+    public Collection<? extends GrantedAuthority> getAuthorities() {
+        return UserAuth.authorities(username);
+    }
+}
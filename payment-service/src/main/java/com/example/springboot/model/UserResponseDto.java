@@ -14,4 +14,11 @@ public record UserResponseDto(String username, String fullName, BigDecimal balan
                 userAuth.getBalance().setScale(2, RoundingMode.HALF_UP),
                 userAuth.getAuthorities().stream().map(GrantedAuthority::getAuthority).collect(Collectors.toList()));
     }
+
+    public UserResponseDto(UserProfile userProfile, BigDecimal balance) {
+        this(userProfile.username(),
+                userProfile.fullName(),
+                balance.setScale(2, RoundingMode.HALF_UP),
+                userProfile.getAuthorities().stream().map(GrantedAuthority::getAuthority).collect(Collectors.toList()));
+    }
 }
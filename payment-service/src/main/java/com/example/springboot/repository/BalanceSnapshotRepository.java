@@ -0,0 +1,14 @@
+package com.example.springboot.repository;
+
+import com.example.springboot.model.BalanceSnapshot;
+import org.springframework.data.r2dbc.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+@Repository
+public interface BalanceSnapshotRepository extends ReactiveCrudRepository<BalanceSnapshot, Long> {
+    @Query("SELECT * FROM balance_snapshot WHERE username = :username ORDER BY id DESC LIMIT 1")
+    Mono<BalanceSnapshot> findLatest(@Param("username") String username);
+}
@@ -0,0 +1,8 @@
+package com.example.springboot.repository;
+
+import com.example.springboot.model.LedgerEntry;
+import reactor.core.publisher.Flux;
+
+public interface CustomizedLedgerEntryRepository {
+    Flux<LedgerEntry> markCompacted(String username);
+}
@@ -0,0 +1,33 @@
+package com.example.springboot.repository;
+
+import com.example.springboot.model.LedgerEntry;
+import org.springframework.data.r2dbc.core.R2dbcEntityTemplate;
+import org.springframework.data.r2dbc.dialect.DialectResolver;
+import org.springframework.data.r2dbc.dialect.H2Dialect;
+import org.springframework.data.r2dbc.dialect.R2dbcDialect;
+import reactor.core.publisher.Flux;
+
+public class CustomizedLedgerEntryRepositoryImpl implements CustomizedLedgerEntryRepository {
+    private final R2dbcEntityTemplate r2dbcEntityTemplate;
+    private final R2dbcDialect dialect;
+
+    public CustomizedLedgerEntryRepositoryImpl(R2dbcEntityTemplate r2dbcEntityTemplate) {
+        this.r2dbcEntityTemplate = r2dbcEntityTemplate;
+        this.dialect = DialectResolver.getDialect(r2dbcEntityTemplate.getDatabaseClient().getConnectionFactory());
+    }
+
+    @Override
+    public Flux<LedgerEntry> markCompacted(String username) {
+        // marks and reads in one statement, so an entry committed late with a lower id is never skipped
+        String update = "UPDATE ledger_entry SET compacted = TRUE WHERE username = :username AND compacted = FALSE";
+        String sql = (isH2() ? "SELECT * FROM FINAL TABLE (" + update + ")" : update + " RETURNING *");
+        return r2dbcEntityTemplate.getDatabaseClient().sql(sql)
+                .bind("username", username)
+                .map((row, metadata) -> r2dbcEntityTemplate.getConverter().read(LedgerEntry.class, row, metadata))
+                .all();
+    }
+
+    private boolean isH2() {
+        return dialect instanceof H2Dialect;
+    }
+}
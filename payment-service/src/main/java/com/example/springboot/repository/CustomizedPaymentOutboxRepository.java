@@ -0,0 +1,10 @@
+package com.example.springboot.repository;
+
+import com.example.springboot.model.PaymentOutbox;
+import reactor.core.publisher.Flux;
+
+import java.time.Instant;
+
+public interface CustomizedPaymentOutboxRepository {
+    Flux<PaymentOutbox> claimUnsent(int limit, Instant now, Instant claimedUntil);
+}
@@ -0,0 +1,39 @@
+package com.example.springboot.repository;
+
+import com.example.springboot.model.PaymentOutbox;
+import org.springframework.data.r2dbc.core.R2dbcEntityTemplate;
+import org.springframework.data.r2dbc.dialect.DialectResolver;
+import org.springframework.data.r2dbc.dialect.H2Dialect;
+import org.springframework.data.r2dbc.dialect.R2dbcDialect;
+import reactor.core.publisher.Flux;
+
+import java.time.Instant;
+
+public class CustomizedPaymentOutboxRepositoryImpl implements CustomizedPaymentOutboxRepository {
+    private final R2dbcEntityTemplate r2dbcEntityTemplate;
+    private final R2dbcDialect dialect;
+
+    public CustomizedPaymentOutboxRepositoryImpl(R2dbcEntityTemplate r2dbcEntityTemplate) {
+        this.r2dbcEntityTemplate = r2dbcEntityTemplate;
+        this.dialect = DialectResolver.getDialect(r2dbcEntityTemplate.getDatabaseClient().getConnectionFactory());
+    }
+
+    @Override
+    public Flux<PaymentOutbox> claimUnsent(int limit, Instant now, Instant claimedUntil) {
+        // replicas skip rows another relay is claiming right now, and the lease hides claimed rows until it runs out
+        String lock = (isH2() ? "" : " FOR UPDATE SKIP LOCKED");
+        String update = "UPDATE payment_outbox SET claimed_until = :claimedUntil WHERE id IN (SELECT id FROM payment_outbox " +
+                "WHERE sent_at IS NULL AND dead_lettered_at IS NULL AND (claimed_until IS NULL OR claimed_until < :now) ORDER BY id LIMIT :limit" + lock + ")";
+        String sql = (isH2() ? "SELECT * FROM FINAL TABLE (" + update + ")" : update + " RETURNING *");
+        return r2dbcEntityTemplate.getDatabaseClient().sql(sql)
+                .bind("claimedUntil", claimedUntil)
+                .bind("now", now)
+                .bind("limit", limit)
+                .map((row, metadata) -> r2dbcEntityTemplate.getConverter().read(PaymentOutbox.class, row, metadata))
+                .all();
+    }
+
+    private boolean isH2() {
+        return dialect instanceof H2Dialect;
+    }
+}
@@ -1,8 +1,30 @@
 package com.example.springboot.repository;
 
+import com.example.schema.avro.CheckStatus;
+import com.example.schema.avro.UpdatePayment;
 import com.example.springboot.model.Payment;
+import com.example.springboot.model.PaymentStatus;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
 
 public interface CustomizedPaymentRepository {
-    Flux<Payment> findExpiredPayments(long seconds);
+    Mono<Boolean> tryLockExpiryShard(int shard);
+
+    Flux<Payment> declineExpiredPayments(Instant expiredBefore, String message, Instant processedAt, int limit, int shard, int shards);
+
+    Mono<Payment> applyCheck(String requestId, CheckStatus check, boolean checkFailed, String reasonFailed, String emoji,
+                             String expiredMessage, Instant expiredBefore, Instant processedAt);
+
+    Flux<Payment> applyChecks(List<UpdatePayment> updatePayments, String emoji, String expiredMessage,
+                              Duration expireAfter, Instant processedAt);
+
+    Mono<Payment> declinePayment(PaymentStatus status, String message, Instant processedAt, String requestId);
+
+    Mono<Payment> declineExpiredPayment(String requestId, Instant expiredBefore, String message, Instant processedAt);
+
+    Flux<Payment> completeTransfers(List<Payment> payments, String message, String reasonFailed, String emoji, Instant processedAt);
 }
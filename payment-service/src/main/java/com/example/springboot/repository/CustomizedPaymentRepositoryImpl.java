@@ -1,34 +1,369 @@
 package com.example.springboot.repository;
 
+import com.example.schema.avro.CheckStatus;
+import com.example.schema.avro.UpdatePayment;
 import com.example.springboot.model.Payment;
 import com.example.springboot.model.PaymentStatus;
 import org.springframework.data.r2dbc.core.R2dbcEntityTemplate;
-import org.springframework.data.relational.core.query.Query;
+import org.springframework.data.r2dbc.dialect.DialectResolver;
+import org.springframework.data.r2dbc.dialect.H2Dialect;
+import org.springframework.data.r2dbc.dialect.R2dbcDialect;
+import org.springframework.r2dbc.core.DatabaseClient;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
+import java.math.BigDecimal;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import static org.springframework.data.relational.core.query.Criteria.where;
-import static org.springframework.data.relational.core.query.Query.query;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class CustomizedPaymentRepositoryImpl implements CustomizedPaymentRepository {
+    private static final String DECLINE_PAYMENTS = "UPDATE payment SET status = :declined, message = :message, processed_at = :processedAt ";
+    private static final String EXPIRED = "status IN (:pending) AND created_at < :expiredBefore";
+    private static final Map<CheckStatus, String> CHECK_COLUMNS = Map.of(
+            CheckStatus.SANCTION_CHECK, "sanction_check_processed",
+            CheckStatus.AUTH_CHECK, "auth_check_processed",
+            CheckStatus.USER_CONFIRMATION_CHECK, "user_confirmation_check_processed");
+
     private final R2dbcEntityTemplate r2dbcEntityTemplate;
+    private final R2dbcDialect dialect;
+    private final String emojiPattern;
 
     public CustomizedPaymentRepositoryImpl(R2dbcEntityTemplate r2dbcEntityTemplate) {
         this.r2dbcEntityTemplate = r2dbcEntityTemplate;
+        this.dialect = DialectResolver.getDialect(r2dbcEntityTemplate.getDatabaseClient().getConnectionFactory());
+        this.emojiPattern = emojiPattern(isH2());
+    }
+
+    @Override
+    public Mono<Boolean> tryLockExpiryShard(int shard) {
+        if (isH2()) {
+            return Mono.just(true);
+        }
+        return r2dbcEntityTemplate.getDatabaseClient().sql("SELECT pg_try_advisory_xact_lock(hashtext('payment_expiry'), :shard) AS locked")
+                .bind("shard", shard)
+                .map((row, metadata) -> Boolean.TRUE.equals(row.get("locked", Boolean.class)))
+                .one();
+    }
+
+    @Override
+    public Flux<Payment> declineExpiredPayments(Instant expiredBefore, String message, Instant processedAt, int limit, int shard, int shards) {
+        // H2 has no hashtext/advisory locks, so every shard covers the whole table there
+        String sharded = (isH2() ? "" : " AND (hashtext(request_id) & 2147483647) % :shards = :shard");
+        String lock = (isH2() ? "" : " FOR UPDATE SKIP LOCKED");
+        String sql = DECLINE_PAYMENTS + "WHERE id IN (SELECT id FROM payment WHERE " + EXPIRED + sharded + " ORDER BY created_at LIMIT :limit" + lock + ")";
+        DatabaseClient.GenericExecuteSpec spec = declinePayments(sql, expiredBefore, message, processedAt)
+                .bind("limit", limit);
+        if (!isH2()) {
+            spec = spec.bind("shard", shard).bind("shards", shards);
+        }
+        return spec
+                .map((row, metadata) -> r2dbcEntityTemplate.getConverter().read(Payment.class, row, metadata))
+                .all();
+    }
+
+    @Override
+    public Mono<Payment> declineExpiredPayment(String requestId, Instant expiredBefore, String message, Instant processedAt) {
+        String sql = DECLINE_PAYMENTS + "WHERE request_id = :requestId AND " + EXPIRED;
+        return declinePayments(sql, expiredBefore, message, processedAt)
+                .bind("requestId", requestId)
+                .map((row, metadata) -> r2dbcEntityTemplate.getConverter().read(Payment.class, row, metadata))
+                .one();
+    }
+
+    @Override
+    public Mono<Payment> declinePayment(PaymentStatus status, String message, Instant processedAt, String requestId) {
+        String sql = "UPDATE payment SET status = :status, message = :message, processed_at = :processedAt " +
+                "WHERE request_id = :requestId AND status IN (:pending)";
+        return r2dbcEntityTemplate.getDatabaseClient().sql(returning(sql))
+                .bind("status", status.name())
+                .bind("message", message)
+                .bind("processedAt", processedAt)
+                .bind("requestId", requestId)
+                .bind("pending", PaymentStatus.pending().stream().map(Enum::name).toList())
+                .map((row, metadata) -> r2dbcEntityTemplate.getConverter().read(Payment.class, row, metadata))
+                .one();
+    }
+
+    @Override
+    public Mono<Payment> applyCheck(String requestId, CheckStatus check, boolean checkFailed, String reasonFailed, String emoji,
+                                    String expiredMessage, Instant expiredBefore, Instant processedAt) {
+        String column = CHECK_COLUMNS.get(check);
+        String otherChecks = CHECK_COLUMNS.values().stream()
+                .filter(c -> !c.equals(column))
+                .collect(Collectors.joining(" AND "));
+        String declined = "(CAST(:checkFailed AS BOOLEAN) OR created_at < :expiredBefore)";
+        String sql = "UPDATE payment SET " + column + " = TRUE, processed_at = :processedAt, " +
+                "status = CASE WHEN " + declined + " THEN :declined WHEN " + otherChecks + " THEN :waiting ELSE status END, " +
+                "message = CASE WHEN created_at < :expiredBefore THEN :expiredMessage " +
+                "WHEN CAST(:checkFailed AS BOOLEAN) THEN " + appendReasonFailed(":reasonFailed") + " " +
+                "ELSE message END " +
+                "WHERE request_id = :requestId AND status IN (:pending) AND " + column + " = FALSE";
+        return r2dbcEntityTemplate.getDatabaseClient().sql(returning(sql))
+                .bind("processedAt", processedAt)
+                .bind("checkFailed", checkFailed)
+                .bind("expiredBefore", expiredBefore)
+                .bind("declined", PaymentStatus.DECLINED.name())
+                .bind("waiting", PaymentStatus.WAITING_FOR_USER_CONFIRMATION.name())
+                .bind("expiredMessage", expiredMessage)
+                .bind("reasonFailed", reasonFailed)
+                .bind("emoji", emoji)
+                .bind("emojiPattern", emojiPattern)
+                .bind("requestId", requestId)
+                .bind("pending", PaymentStatus.pending().stream().map(Enum::name).toList())
+                .map((row, metadata) -> r2dbcEntityTemplate.getConverter().read(Payment.class, row, metadata))
+                .one();
+    }
+
+    @Override
+    public Flux<Payment> applyChecks(List<UpdatePayment> updatePayments, String emoji, String expiredMessage,
+                                     Duration expireAfter, Instant processedAt) {
+        // an UPDATE changes each row once, so the checks of one payment are folded together first: a flag is set when
+        // any of its updates carries that check, the first failed one gives the reason and the latest one decides expiry
+        Map<String, List<UpdatePayment>> byRequestId = updatePayments.stream()
+                .collect(Collectors.groupingBy(UpdatePayment::getRequestId, LinkedHashMap::new, Collectors.toList()));
+        Map<String, Object> binds = new HashMap<>();
+        StringBuilder expiredBefore = new StringBuilder("CASE request_id");
+        StringBuilder reasonFailed = new StringBuilder("CASE request_id");
+        int i = 0;
+        for (Map.Entry<String, List<UpdatePayment>> entry : byRequestId.entrySet()) {
+            Instant updateAt = entry.getValue().stream().map(UpdatePayment::getUpdateAt).max(Comparator.naturalOrder()).orElseThrow();
+            binds.put("r" + i, entry.getKey());
+            binds.put("e" + i, updateAt.minus(expireAfter));
+            expiredBefore.append(" WHEN :r").append(i).append(" THEN CAST(:e").append(i).append(" AS TIMESTAMP WITH TIME ZONE)");
+            Optional<UpdatePayment> failed = entry.getValue().stream().filter(UpdatePayment::getCheckFailed).findFirst();
+            if (failed.isPresent()) {
+                binds.put("f" + i, String.valueOf(failed.get().getReasonFailed()));
+                reasonFailed.append(" WHEN :r").append(i).append(" THEN CAST(:f").append(i).append(" AS VARCHAR(255))");
+            }
+            i++;
+        }
+        String expired = "created_at < " + expiredBefore.append(" END");
+
+        List<String> assignments = new ArrayList<>();
+        List<String> allChecked = new ArrayList<>();
+        List<String> newChecks = new ArrayList<>();
+        List<String> failedChecks = new ArrayList<>();
+        for (Map.Entry<CheckStatus, String> check : CHECK_COLUMNS.entrySet()) {
+            String column = check.getValue();
+            List<String> checked = requestIds(updatePayments, u -> u.getStatus() == check.getKey());
+            List<String> checkFailed = requestIds(updatePayments, u -> u.getStatus() == check.getKey() && u.getCheckFailed());
+            String isChecked = (checked.isEmpty() ? "FALSE" : "request_id IN (:" + check.getKey().name() + ")");
+            assignments.add(column + " = (" + column + " OR " + isChecked + ")");
+            allChecked.add("(" + column + " OR " + isChecked + ")");
+            newChecks.add("(" + isChecked + " AND " + column + " = FALSE)");
+            if (!checked.isEmpty()) {
+                binds.put(check.getKey().name(), checked);
+            }
+            if (!checkFailed.isEmpty()) {
+                failedChecks.add("(request_id IN (:" + check.getKey().name() + "_FAILED) AND " + column + " = FALSE)");
+                binds.put(check.getKey().name() + "_FAILED", checkFailed);
+            }
+        }
+        String declined = (failedChecks.isEmpty() ? "FALSE" : "(" + String.join(" OR ", failedChecks) + ")");
+
+        // right hand sides read the row as it was, so a row only matches, and only comes back, when one of its
+        // checks is still unset while it is pending, which keeps repeated checks no-ops like applyCheck does
+        String sql = "UPDATE payment SET " + String.join(", ", assignments) + ", processed_at = :processedAt, " +
+                "status = CASE WHEN " + declined + " OR " + expired + " THEN :declined " +
+                "WHEN " + String.join(" AND ", allChecked) + " THEN :waiting ELSE status END, " +
+                "message = CASE WHEN " + expired + " THEN :expiredMessage " +
+                "WHEN " + declined + " THEN " + appendReasonFailed("(" + reasonFailed.append(" END") + ")") + " " +
+                "ELSE message END " +
+                "WHERE request_id IN (:requestIds) AND status IN (:pending) AND (" + String.join(" OR ", newChecks) + ")";
+        DatabaseClient.GenericExecuteSpec spec = r2dbcEntityTemplate.getDatabaseClient().sql(returning(sql))
+                .bind("processedAt", processedAt)
+                .bind("declined", PaymentStatus.DECLINED.name())
+                .bind("waiting", PaymentStatus.WAITING_FOR_USER_CONFIRMATION.name())
+                .bind("expiredMessage", expiredMessage)
+                .bind("emoji", emoji)
+                .bind("emojiPattern", emojiPattern)
+                .bind("requestIds", new ArrayList<>(byRequestId.keySet()))
+                .bind("pending", PaymentStatus.pending().stream().map(Enum::name).toList());
+        for (Map.Entry<String, Object> bind : binds.entrySet()) {
+            spec = spec.bind(bind.getKey(), bind.getValue());
+        }
+        return spec
+                .map((row, metadata) -> r2dbcEntityTemplate.getConverter().read(Payment.class, row, metadata))
+                .all();
+    }
+
+    private static List<String> requestIds(List<UpdatePayment> updatePayments, Predicate<UpdatePayment> filter) {
+        return updatePayments.stream().filter(filter).map(UpdatePayment::getRequestId).distinct().toList();
     }
 
     @Override
-    public Flux<Payment> findExpiredPayments(long seconds) {
-        Instant now = Instant.now();
-        Query query = query(where("status").in(getStatus()));
-        return r2dbcEntityTemplate.select(query, Payment.class)
-                .filter(p -> p.getCreatedAt().plusSeconds(seconds).isBefore(now));
+    public Flux<Payment> completeTransfers(List<Payment> payments, String message, String reasonFailed, String emoji, Instant processedAt) {
+        DatabaseClient client = r2dbcEntityTemplate.getDatabaseClient();
+        List<Long> ids = payments.stream().map(Payment::getId).toList();
+        // claim first: a payment that is no longer waiting drops out of the batch instead of failing it
+        return client.sql(returning("UPDATE payment SET status = :completed, processed_at = :processedAt WHERE id IN (:ids) AND status = :waiting"))
+                .bind("completed", PaymentStatus.COMPLETED.name())
+                .bind("processedAt", processedAt)
+                .bind("ids", ids)
+                .bind("waiting", PaymentStatus.WAITING_FOR_USER_CONFIRMATION.name())
+                .map((row, metadata) -> r2dbcEntityTemplate.getConverter().read(Payment.class, row, metadata))
+                .all()
+                .sort(Comparator.comparingInt(p -> ids.indexOf(p.getId())))
+                .collectList()
+                .filter(claimed -> !claimed.isEmpty())
+                .flatMapMany(claimed -> transferBalances(claimed, processedAt)
+                        .flatMapMany(debited -> {
+                            Set<Long> debitedIds = debited.stream().map(Payment::getId).collect(Collectors.toSet());
+                            List<Long> insufficient = claimed.stream()
+                                    .map(Payment::getId)
+                                    .filter(id -> !debitedIds.contains(id))
+                                    .toList();
+                            return Flux.concat(completeDebited(debited, message, processedAt),
+                                    declineInsufficient(insufficient, reasonFailed, emoji));
+                        }));
+    }
+
+    private Mono<List<Payment>> transferBalances(List<Payment> payments, Instant processedAt) {
+        DatabaseClient client = r2dbcEntityTemplate.getDatabaseClient();
+        List<String> usernames = payments.stream()
+                .flatMap(p -> Stream.of(p.getUsernameFrom(), p.getUsernameTo()))
+                .distinct()
+                .sorted()
+                .toList();
+        // lock every account of the batch in a fixed order so concurrent lanes cannot deadlock on each other
+        Mono<Void> lockAccounts = client.sql("SELECT id FROM user_auth WHERE username IN (:usernames) ORDER BY username FOR UPDATE")
+                .bind("usernames", usernames)
+                .fetch().all()
+                .then();
+        // each debit is conditional on the sender's balance: no rows updated means insufficient funds for that payment
+        return lockAccounts.thenMany(Flux.fromIterable(payments)
+                        .concatMap(p -> client.sql("UPDATE user_auth SET balance = balance - :total WHERE username = :username AND balance >= :total")
+                                .bind("total", p.getTotal())
+                                .bind("username", p.getUsernameFrom())
+                                .fetch().rowsUpdated()
+                                .filter(debited -> debited > 0)
+                                .map(debited -> p)))
+                .collectList()
+                .flatMap(debited -> {
+                    if (debited.isEmpty()) {
+                        return Mono.just(debited);
+                    }
+                    Map<String, BigDecimal> credits = debited.stream()
+                            .collect(Collectors.groupingBy(Payment::getUsernameTo, TreeMap::new,
+                                    Collectors.reducing(BigDecimal.ZERO, Payment::getTotal, BigDecimal::add)));
+                    // the ledger rows are the audit trail of these updates, written under the same locks and transaction
+                    return appendLedgerEntries(debited, processedAt)
+                            .thenMany(Flux.fromIterable(credits.entrySet()))
+                            .concatMap(credit -> client.sql("UPDATE user_auth SET balance = balance + :total WHERE username = :username")
+                                    .bind("total", credit.getValue())
+                                    .bind("username", credit.getKey())
+                                    .fetch().rowsUpdated())
+                            .then(Mono.just(debited));
+                });
+    }
+
+    private Flux<Payment> completeDebited(List<Payment> debited, String message, Instant processedAt) {
+        if (debited.isEmpty()) {
+            return Flux.empty();
+        }
+        return r2dbcEntityTemplate.getDatabaseClient().sql(returning("UPDATE payment SET message = :message WHERE id IN (:ids)"))
+                .bind("message", message)
+                .bind("ids", debited.stream().map(Payment::getId).toList())
+                .map((row, metadata) -> r2dbcEntityTemplate.getConverter().read(Payment.class, row, metadata))
+                .all();
+    }
+
+    private Flux<Payment> declineInsufficient(List<Long> ids, String reasonFailed, String emoji) {
+        if (ids.isEmpty()) {
+            return Flux.empty();
+        }
+        return r2dbcEntityTemplate.getDatabaseClient().sql(returning("UPDATE payment SET status = :insufficient, " +
+                        "message = " + appendReasonFailed(":reasonFailed") + " WHERE id IN (:ids)"))
+                .bind("insufficient", PaymentStatus.INSUFFICIENT_RESOURCES.name())
+                .bind("reasonFailed", reasonFailed)
+                .bind("emoji", emoji)
+                .bind("emojiPattern", emojiPattern)
+                .bind("ids", ids)
+                .map((row, metadata) -> r2dbcEntityTemplate.getConverter().read(Payment.class, row, metadata))
+                .all();
+    }
+
+    private Mono<Long> appendLedgerEntries(List<Payment> payments, Instant createdAt) {
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < payments.size(); i++) {
+            rows.add(String.format("(:from%1$d, :requestId%1$d, :debit%1$d, :createdAt), (:to%1$d, :requestId%1$d, :credit%1$d, :createdAt)", i));
+        }
+        DatabaseClient.GenericExecuteSpec spec = r2dbcEntityTemplate.getDatabaseClient()
+                .sql("INSERT INTO ledger_entry (username, request_id, amount, created_at) VALUES " + String.join(", ", rows))
+                .bind("createdAt", createdAt);
+        int i = 0;
+        for (Payment payment : payments) {
+            spec = spec.bind("from" + i, payment.getUsernameFrom())
+                    .bind("to" + i, payment.getUsernameTo())
+                    .bind("requestId" + i, payment.getRequestId())
+                    .bind("debit" + i, payment.getTotal().negate())
+                    .bind("credit" + i, payment.getTotal());
+            i++;
+        }
+        return spec.fetch().rowsUpdated();
+    }
+
+    private DatabaseClient.GenericExecuteSpec declinePayments(String update, Instant expiredBefore, String message, Instant processedAt) {
+        return r2dbcEntityTemplate.getDatabaseClient().sql(returning(update))
+                .bind("declined", PaymentStatus.DECLINED.name())
+                .bind("message", message)
+                .bind("processedAt", processedAt)
+                .bind("pending", PaymentStatus.pending().stream().map(Enum::name).toList())
+                .bind("expiredBefore", expiredBefore);
+    }
+
+    // appends reasonFailed to the current message and prefixes :emoji only when the result carries no emoji yet,
+    // with Character.isEmoji deciding what an emoji is, so messages read the same as the ones built in Java before
+    private String appendReasonFailed(String reasonFailed) {
+        String reason = "(COALESCE(message || ';', '') || " + reasonFailed + ")";
+        String hasEmoji = (isH2() ? "REGEXP_LIKE(" + reason + ", :emojiPattern)" : reason + " ~ :emojiPattern");
+        return "(CASE WHEN " + hasEmoji + " THEN " + reason + " ELSE :emoji || ' ' || " + reason + " END)";
+    }
+
+    // a character class of every code point Character.isEmoji accepts, in Java regex syntax for H2 and in
+    // Postgres regex syntax otherwise
+    private static String emojiPattern(boolean java) {
+        StringBuilder pattern = new StringBuilder("[");
+        int start = -1;
+        for (int codePoint = 0; codePoint <= Character.MAX_CODE_POINT + 1; codePoint++) {
+            boolean emoji = codePoint <= Character.MAX_CODE_POINT && Character.isEmoji(codePoint);
+            if (emoji && start < 0) {
+                start = codePoint;
+            } else if (!emoji && start >= 0) {
+                pattern.append(escape(start, java));
+                if (codePoint - 1 > start) {
+                    pattern.append('-').append(escape(codePoint - 1, java));
+                }
+                start = -1;
+            }
+        }
+        return pattern.append(']').toString();
+    }
+
+    private static String escape(int codePoint, boolean java) {
+        return (java ? String.format("\\x{%X}", codePoint) : String.format("\\U%08X", codePoint));
+    }
+
+    private String returning(String update) {
+        if (isH2()) {
+            return "SELECT * FROM FINAL TABLE (" + update + ")";
+        }
+        return update + " RETURNING *";
     }
 
-    private List<String> getStatus() {
-        return Arrays.asList(PaymentStatus.PROCESSING.name(), PaymentStatus.REPROCESSING.name(), PaymentStatus.WAITING_FOR_USER_CONFIRMATION.name());
+    private boolean isH2() {
+        return dialect instanceof H2Dialect;
     }
 }
@@ -0,0 +1,13 @@
+package com.example.springboot.repository;
+
+import com.example.springboot.model.LedgerEntry;
+import org.springframework.data.r2dbc.repository.Query;
+import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+
+@Repository
+public interface LedgerEntryRepository extends ReactiveCrudRepository<LedgerEntry, Long>, CustomizedLedgerEntryRepository {
+    @Query("SELECT DISTINCT username FROM ledger_entry WHERE compacted = FALSE")
+    Flux<String> findUncompactedUsernames();
+}
@@ -0,0 +1,34 @@
+package com.example.springboot.repository;
+
+import com.example.springboot.model.PaymentOutbox;
+import org.springframework.data.r2dbc.repository.Modifying;
+import org.springframework.data.r2dbc.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.Collection;
+
+@Repository
+public interface PaymentOutboxRepository extends ReactiveCrudRepository<PaymentOutbox, Long>, CustomizedPaymentOutboxRepository {
+    @Query("SELECT MIN(created_at) FROM payment_outbox WHERE sent_at IS NULL AND dead_lettered_at IS NULL")
+    Mono<Instant> findOldestUnsentCreatedAt();
+
+    @Modifying
+    @Query("UPDATE payment_outbox SET sent_at = :sentAt WHERE id IN (:ids) AND sent_at IS NULL")
+    Mono<Integer> markSent(@Param("ids") Collection<Long> ids, @Param("sentAt") Instant sentAt);
+
+    @Modifying
+    @Query("UPDATE payment_outbox SET attempts = attempts + 1, claimed_until = :retryAt WHERE id IN (:ids) AND sent_at IS NULL")
+    Mono<Integer> markFailed(@Param("ids") Collection<Long> ids, @Param("retryAt") Instant retryAt);
+
+    @Modifying
+    @Query("UPDATE payment_outbox SET dead_lettered_at = :deadLetteredAt WHERE id IN (:ids) AND sent_at IS NULL AND dead_lettered_at IS NULL AND attempts >= :maxAttempts")
+    Mono<Integer> deadLetter(@Param("ids") Collection<Long> ids, @Param("maxAttempts") int maxAttempts, @Param("deadLetteredAt") Instant deadLetteredAt);
+
+    @Modifying
+    @Query("DELETE FROM payment_outbox WHERE sent_at < :sentBefore")
+    Mono<Integer> deleteSentBefore(@Param("sentBefore") Instant sentBefore);
+}
@@ -1,8 +1,6 @@
 package com.example.springboot.repository;
 
 import com.example.springboot.model.Payment;
-import com.example.springboot.model.PaymentStatus;
-import org.springframework.data.r2dbc.repository.Modifying;
 import org.springframework.data.r2dbc.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.data.repository.reactive.ReactiveCrudRepository;
@@ -11,20 +9,38 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.time.Instant;
+import java.util.Collection;
 
 @Repository
 public interface PaymentRepository extends ReactiveCrudRepository<Payment, Long>, CustomizedPaymentRepository {
     @Query("SELECT * FROM payment WHERE request_id = :requestId")
     Mono<Payment> findByRequestId(@Param("requestId") String requestId);
 
-    @Query("SELECT * FROM payment WHERE username_from = :username OR status = 'COMPLETED' and username_to = :username ORDER BY created_at DESC")
-    Flux<Payment> findByUsernameFrom(String username);
+    @Query("SELECT request_id FROM payment WHERE request_id IN (:requestIds)")
+    Flux<String> findExistingRequestIds(@Param("requestIds") Collection<String> requestIds);
+
+    @Query("SELECT * FROM payment WHERE request_id = :requestId AND username_from = :caller")
+    Mono<Payment> findByRequestIdVisibleTo(@Param("requestId") String requestId, @Param("caller") String caller);
+
+    @Query("SELECT * FROM payment WHERE request_id = :requestId AND (username_from = :caller OR username_to = :caller)")
+    Mono<Payment> findCursorVisibleTo(@Param("requestId") String requestId, @Param("caller") String caller);
+
+    @Query("SELECT * FROM payment ORDER BY created_at DESC, id DESC LIMIT :limit")
+    Flux<Payment> findFirstPage(@Param("limit") int limit);
+
+    @Query("SELECT * FROM payment WHERE (created_at, id) < (:createdAt, :id) ORDER BY created_at DESC, id DESC LIMIT :limit")
+    Flux<Payment> findPageBefore(@Param("createdAt") Instant createdAt, @Param("id") Long id, @Param("limit") int limit);
+
+    @Query("SELECT * FROM payment WHERE (username_from = :caller OR username_to = :caller) ORDER BY created_at DESC, id DESC LIMIT :limit")
+    Flux<Payment> findFirstPageVisibleTo(@Param("caller") String caller, @Param("limit") int limit);
+
+    @Query("SELECT * FROM payment WHERE (username_from = :caller OR username_to = :caller) AND (created_at, id) < (:createdAt, :id) ORDER BY created_at DESC, id DESC LIMIT :limit")
+    Flux<Payment> findPageBeforeVisibleTo(@Param("caller") String caller, @Param("createdAt") Instant createdAt, @Param("id") Long id, @Param("limit") int limit);
+
+    @Query("SELECT * FROM payment WHERE status IN (:statuses)")
+    Flux<Payment> findByStatusIn(@Param("statuses") Collection<String> statuses);
 
     @Override
     @Query("SELECT * FROM payment ORDER BY created_at DESC")
     Flux<Payment> findAll();
-
-    @Modifying
-    @Query("update payment SET status = :status, message = :reasonFailed, processed_at = :processedAt WHERE request_id = :requestId")
-    Mono<Void> declinePayment(@Param("status") PaymentStatus status, @Param("reasonFailed") String reasonFailed, @Param("processedAt") Instant processedAt, @Param("requestId") String requestId);
 }
@@ -7,8 +7,16 @@ import org.springframework.data.repository.reactive.ReactiveCrudRepository;
 import org.springframework.stereotype.Repository;
 import reactor.core.publisher.Mono;
 
+import java.math.BigDecimal;
+
 @Repository
 public interface UserRepository extends ReactiveCrudRepository<UserAuth, Long> {
     @Query("SELECT * FROM user_auth WHERE username = :username")
     Mono<UserAuth> findById(@Param("username") String username);
+
+    @Query("SELECT balance FROM user_auth WHERE username = :username")
+    Mono<BigDecimal> findBalance(@Param("username") String username);
+
+    @Query("SELECT balance FROM user_auth WHERE username = :username FOR UPDATE")
+    Mono<BigDecimal> lockBalance(@Param("username") String username);
 }
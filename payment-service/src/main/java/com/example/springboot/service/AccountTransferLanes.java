@@ -0,0 +1,142 @@
+package com.example.springboot.service;
+
+import com.example.springboot.config.PaymentProperties;
+import com.example.springboot.model.Payment;
+import com.example.springboot.model.PaymentStatus;
+import com.example.springboot.model.ResponsePaymentDto;
+import com.example.springboot.repository.PaymentRepository;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalEventPublisher;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Component
+public class AccountTransferLanes {
+    private static final Logger log = LoggerFactory.getLogger(AccountTransferLanes.class);
+
+    private final PaymentRepository paymentRepository;
+    private final TransactionalOperator transactionalOperator;
+    private final ApplicationEventPublisher applicationEventPublisher;
+    private final int batchSize;
+    private final Stripe[] stripes;
+    private final DistributionSummary laneBatchSize;
+
+    public AccountTransferLanes(PaymentRepository paymentRepository, TransactionalOperator transactionalOperator,
+                                ApplicationEventPublisher applicationEventPublisher, PaymentProperties paymentProperties, MeterRegistry meterRegistry) {
+        this.paymentRepository = paymentRepository;
+        this.transactionalOperator = transactionalOperator;
+        this.applicationEventPublisher = applicationEventPublisher;
+        this.batchSize = paymentProperties.getAccountLaneBatchSize();
+        this.stripes = new Stripe[paymentProperties.getAccountLaneStripes()];
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = new Stripe(Timer.builder("payment.account.lane.wait")
+                    .description("Time a transfer waits in its account lane before being applied")
+                    .tag("stripe", String.valueOf(i))
+                    .register(meterRegistry));
+            Gauge.builder("payment.account.lane.depth", stripe.depth, AtomicInteger::get)
+                    .description("Transfers queued in the account lane")
+                    .tag("stripe", String.valueOf(i))
+                    .register(meterRegistry);
+            stripes[i] = stripe;
+        }
+        this.laneBatchSize = DistributionSummary.builder("payment.account.lane.batch.size")
+                .description("Transfers applied per account lane transaction")
+                .register(meterRegistry);
+    }
+
+    // lanes are keyed by the receiver so that credits to a hot account collapse into one net update per batch
+    public Mono<Payment> transfer(Payment payment) {
+        return Mono.defer(() -> {
+            Stripe stripe = stripes[Math.floorMod(payment.getUsernameTo().hashCode(), stripes.length)];
+            PendingTransfer transfer = new PendingTransfer(payment, Sinks.one(), System.nanoTime());
+            stripe.queue.add(transfer);
+            stripe.depth.incrementAndGet();
+            drain(stripe);
+            return transfer.result.asMono();
+        });
+    }
+
+    private void drain(Stripe stripe) {
+        if (!stripe.draining.compareAndSet(false, true)) {
+            return;
+        }
+        Map<Long, PendingTransfer> pending = new LinkedHashMap<>();
+        PendingTransfer transfer;
+        while (pending.size() < batchSize && (transfer = stripe.queue.poll()) != null) {
+            stripe.depth.decrementAndGet();
+            stripe.waitTimer.record(System.nanoTime() - transfer.enqueuedAt, TimeUnit.NANOSECONDS);
+            if (pending.putIfAbsent(transfer.payment.getId(), transfer) != null) {
+                transfer.result.tryEmitError(new IllegalStateException("Payment is already being completed: " + transfer.payment.getRequestId()));
+            }
+        }
+        if (pending.isEmpty()) {
+            stripe.draining.set(false);
+            // a transfer may have been queued after the poll but before the flag was released
+            if (!stripe.queue.isEmpty()) {
+                drain(stripe);
+            }
+            return;
+        }
+        int size = pending.size();
+        laneBatchSize.record(size);
+        // deferred, so a failure while assembling the chain is reported like any other, and the lane is released
+        // whichever way the batch ends
+        Flux.defer(() -> paymentRepository.completeTransfers(pending.values().stream().map(t -> t.payment).toList(), "\uD83E\uDD11 Payment successful",
+                                "User has not sufficient resources", "\uD83D\uDE21", Instant.now())
+                        .concatMap(p -> new TransactionalEventPublisher(applicationEventPublisher)
+                                .publishEvent(new PaymentEvent(p.getStatus() == PaymentStatus.COMPLETED ? new ResponsePaymentDto(p, p.getTotal()) : new ResponsePaymentDto(p)))
+                                .thenReturn(p))
+                        .as(transactionalOperator::transactional))
+                .collectList()
+                .doFinally(signal -> release(stripe))
+                .subscribe(results -> {
+                    results.forEach(p -> pending.remove(p.getId()).result.tryEmitValue(p));
+                    // whatever was not claimed was no longer waiting for confirmation, e.g. it expired in the meantime
+                    pending.values().forEach(t -> t.result.tryEmitError(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Payment has invalid details")));
+                }, e -> {
+                    log.error("Failed to apply transfers: size: {}", size, e);
+                    pending.values().forEach(t -> t.result.tryEmitError(e));
+                });
+    }
+
+    private void release(Stripe stripe) {
+        stripe.draining.set(false);
+        if (!stripe.queue.isEmpty()) {
+            drain(stripe);
+        }
+    }
+
+    private record PendingTransfer(Payment payment, Sinks.One<Payment> result, long enqueuedAt) {
+    }
+
+    private static class Stripe {
+        private final Queue<PendingTransfer> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final Timer waitTimer;
+
+        private Stripe(Timer waitTimer) {
+            this.waitTimer = waitTimer;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.springboot.service;
 
 import com.example.springboot.model.UserAuth;
+import com.example.springboot.model.UserProfile;
 import com.example.springboot.repository.UserRepository;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -16,19 +17,21 @@ import java.math.BigDecimal;
 public class CustomOidcUserService {
     private static final Logger log = LoggerFactory.getLogger(CustomOidcUserService.class);
     private final UserRepository userRepository;
+    private final UserCache userCache;
 
-    public CustomOidcUserService(UserRepository userRepository) {
+    public CustomOidcUserService(UserRepository userRepository, UserCache userCache) {
         this.userRepository = userRepository;
+        this.userCache = userCache;
     }
 
     @Transactional
-    public Mono<UserAuth> configureUser(OidcUser oidcUser) {
-        return userRepository.findById(oidcUser.getEmail())
+    public Mono<UserProfile> configureUser(OidcUser oidcUser) {
+        return userCache.findById(oidcUser.getEmail())
                         .switchIfEmpty(createUser(oidcUser));
 
     }
 
-    private Mono<UserAuth> createUser(OidcUser oidcUser) {
+    private Mono<UserProfile> createUser(OidcUser oidcUser) {
         log.debug("Creating user from google oauth: {}", oidcUser.getEmail());
         String address = oidcUser.getUserInfo().getAddress().getFormatted();
         if (StringUtils.isBlank(address)) {
@@ -36,6 +39,7 @@ public class CustomOidcUserService {
         }
         UserAuth userAuth = new UserAuth(oidcUser.getEmail(), new BigDecimal("1000.00"), address, null, oidcUser.getFullName());
         userAuth.setSocialMedia(true);
-        return userRepository.save(userAuth);
+        return userRepository.save(userAuth)
+                .map(UserProfile::new);
     }
 }
@@ -0,0 +1,32 @@
+package com.example.springboot.service;
+
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+@Component
+public class KeyOrderedDispatcher {
+    private final Map<String, CompletableFuture<?>> lanes = new ConcurrentHashMap<>();
+
+    public <T> CompletableFuture<T> dispatch(String key, Supplier<Mono<T>> task) {
+        CompletableFuture<T> next = new CompletableFuture<>();
+        CompletableFuture<?> previous = lanes.put(key, next);
+        CompletableFuture<?> tail = (previous != null ? previous : CompletableFuture.completedFuture(null));
+        // a failed record must not hold back the records queued behind it for the same key
+        tail.handle((r, e) -> null)
+                .thenAccept(ignored -> Mono.defer(task)
+                        .subscribeOn(Schedulers.parallel())
+                        .subscribe(next::complete, next::completeExceptionally, () -> next.complete(null)));
+        next.whenComplete((r, e) -> lanes.remove(key, next));
+        return next;
+    }
+
+    public int getActiveKeys() {
+        return lanes.size();
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.springboot.service;
+
+import com.example.springboot.model.BalanceSnapshot;
+import com.example.springboot.model.LedgerEntry;
+import com.example.springboot.repository.BalanceSnapshotRepository;
+import com.example.springboot.repository.LedgerEntryRepository;
+import com.example.springboot.repository.UserRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Component
+public class LedgerCompactor {
+    private static final Logger log = LoggerFactory.getLogger(LedgerCompactor.class);
+
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final LedgerEntryRepository ledgerEntryRepository;
+    private final BalanceSnapshotRepository balanceSnapshotRepository;
+    private final UserRepository userRepository;
+    private final TransactionalOperator transactionalOperator;
+    private final Counter snapshots;
+    private final Counter drift;
+
+    public LedgerCompactor(LedgerEntryRepository ledgerEntryRepository, BalanceSnapshotRepository balanceSnapshotRepository,
+                           UserRepository userRepository, TransactionalOperator transactionalOperator, MeterRegistry meterRegistry) {
+        this.ledgerEntryRepository = ledgerEntryRepository;
+        this.balanceSnapshotRepository = balanceSnapshotRepository;
+        this.userRepository = userRepository;
+        this.transactionalOperator = transactionalOperator;
+        this.snapshots = Counter.builder("payment.ledger.snapshots")
+                .description("Balance snapshots rolled up from ledger entries")
+                .register(meterRegistry);
+        this.drift = Counter.builder("payment.ledger.drift")
+                .description("Snapshots whose derived balance differs from the maintained balance")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${com.example.ledger-compaction-delay-in-millis:60000}", initialDelay = 10000)
+    public void compact() {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        compactAll()
+                .doFinally(signal -> compacting.set(false))
+                .subscribe(count -> log.debug("Compacted ledger entries: accounts: {}", count), e -> log.error("Failed to compact ledger", e));
+    }
+
+    public Mono<Long> compactAll() {
+        return ledgerEntryRepository.findUncompactedUsernames()
+                .concatMap(username -> compactAccount(username).as(transactionalOperator::transactional))
+                .count();
+    }
+
+    private Mono<BalanceSnapshot> compactAccount(String username) {
+        // the account lanes update the balance and append its entries while holding this row lock, so the locked
+        // balance already includes every entry marked here
+        return userRepository.lockBalance(username)
+                .flatMap(balance -> balanceSnapshotRepository.findLatest(username)
+                        .map(Optional::of)
+                        .defaultIfEmpty(Optional.empty())
+                        .flatMap(latest -> ledgerEntryRepository.markCompacted(username)
+                                .collectList()
+                                .filter(entries -> !entries.isEmpty())
+                                .flatMap(entries -> {
+                                    // the first snapshot of an account opens from its maintained balance
+                                    BigDecimal derived = latest.map(snapshot -> snapshot.getBalance().add(sum(entries))).orElse(balance);
+                                    if (derived.compareTo(balance) != 0) {
+                                        log.warn("Ledger balance of user({}) is {} but account balance is {}", username, derived, balance);
+                                        drift.increment();
+                                    }
+                                    snapshots.increment();
+                                    return balanceSnapshotRepository.save(new BalanceSnapshot(username, derived, lastId(entries)));
+                                })));
+    }
+
+    private static BigDecimal sum(List<LedgerEntry> entries) {
+        return entries.stream().map(LedgerEntry::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add);
+    }
+
+    private static long lastId(List<LedgerEntry> entries) {
+        return entries.stream().mapToLong(LedgerEntry::getId).max().orElse(0L);
+    }
+}
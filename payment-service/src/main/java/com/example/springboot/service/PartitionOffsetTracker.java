@@ -0,0 +1,153 @@
+package com.example.springboot.service;
+
+import com.example.springboot.config.PaymentProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Component
+public class PartitionOffsetTracker implements ConsumerAwareRebalanceListener {
+    private static final Logger log = LoggerFactory.getLogger(PartitionOffsetTracker.class);
+
+    private final Map<TopicPartition, PartitionOffsets> partitions = new ConcurrentHashMap<>();
+    private final KafkaListenerEndpointRegistry kafkaListenerEndpointRegistry;
+    private final PaymentProperties paymentProperties;
+    private final MeterRegistry meterRegistry;
+    private final Counter pauses;
+
+    public PartitionOffsetTracker(KafkaListenerEndpointRegistry kafkaListenerEndpointRegistry, PaymentProperties paymentProperties,
+                                  MeterRegistry meterRegistry) {
+        this.kafkaListenerEndpointRegistry = kafkaListenerEndpointRegistry;
+        this.paymentProperties = paymentProperties;
+        this.meterRegistry = meterRegistry;
+        this.pauses = Counter.builder("payment.update.partition.pauses")
+                .description("Partitions paused because too many records were in flight")
+                .register(meterRegistry);
+    }
+
+    public void begin(TopicPartition topicPartition, long offset, Acknowledgment ack) {
+        PartitionOffsets p = partitions.computeIfAbsent(topicPartition, this::register);
+        boolean pause;
+        synchronized (p) {
+            if (p.committed < 0) {
+                p.committed = offset;
+            }
+            p.inFlight.put(offset, new PendingRecord(ack));
+            p.received = Math.max(p.received, offset + 1);
+            pause = !p.paused && p.inFlight.size() >= paymentProperties.getUpdateMaxInFlightPerPartition();
+            p.paused |= pause;
+        }
+        if (pause) {
+            log.debug("Pausing {}: in flight: {}", topicPartition, p.inFlight.size());
+            pauses.increment();
+            findContainer(topicPartition).ifPresent(c -> c.pausePartition(topicPartition));
+        }
+    }
+
+    public void complete(TopicPartition topicPartition, long offset) {
+        PartitionOffsets p = partitions.get(topicPartition);
+        if (p == null) {
+            return;
+        }
+        Acknowledgment ack = null;
+        boolean resume;
+        synchronized (p) {
+            PendingRecord record = p.inFlight.get(offset);
+            if (record == null) {
+                return;
+            }
+            record.done = true;
+            Iterator<Map.Entry<Long, PendingRecord>> it = p.inFlight.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, PendingRecord> head = it.next();
+                if (!head.getValue().done) {
+                    break;
+                }
+                ack = head.getValue().ack;
+                p.committed = head.getKey() + 1;
+                it.remove();
+            }
+            resume = p.paused && p.inFlight.size() <= paymentProperties.getUpdateMaxInFlightPerPartition() / 2;
+            p.paused &= !resume;
+        }
+        // acknowledging the highest contiguous record commits every offset below it
+        if (ack != null) {
+            ack.acknowledge();
+        }
+        if (resume) {
+            log.debug("Resuming {}: in flight: {}", topicPartition, p.inFlight.size());
+            findContainer(topicPartition).ifPresent(c -> c.resumePartition(topicPartition));
+        }
+    }
+
+    @Override
+    public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer, Collection<TopicPartition> revoked) {
+        revoked.forEach(this::unregister);
+    }
+
+    @Override
+    public void onPartitionsLost(Consumer<?, ?> consumer, Collection<TopicPartition> lost) {
+        lost.forEach(this::unregister);
+    }
+
+    private PartitionOffsets register(TopicPartition topicPartition) {
+        PartitionOffsets p = new PartitionOffsets();
+        Tags tags = Tags.of("topic", topicPartition.topic(), "partition", String.valueOf(topicPartition.partition()));
+        p.gauges.add(Gauge.builder("payment.update.inflight", p, o -> o.inFlight.size())
+                .description("Records received but not yet committed")
+                .tags(tags)
+                .register(meterRegistry));
+        p.gauges.add(Gauge.builder("payment.update.commit.lag", p, o -> o.committed < 0 ? 0 : o.received - o.committed)
+                .description("Offsets between the last received record and the committed offset")
+                .tags(tags)
+                .register(meterRegistry));
+        return p;
+    }
+
+    private void unregister(TopicPartition topicPartition) {
+        PartitionOffsets p = partitions.remove(topicPartition);
+        if (p != null) {
+            log.debug("Dropping offsets of revoked {}: in flight: {}", topicPartition, p.inFlight.size());
+            p.gauges.forEach(meterRegistry::remove);
+        }
+    }
+
+    private Optional<MessageListenerContainer> findContainer(TopicPartition topicPartition) {
+        return kafkaListenerEndpointRegistry.getAllListenerContainers().stream()
+                .filter(c -> {
+                    Collection<TopicPartition> assigned = c.getAssignedPartitions();
+                    return assigned != null && assigned.contains(topicPartition);
+                })
+                .findFirst();
+    }
+
+    private static class PartitionOffsets {
+        private final NavigableMap<Long, PendingRecord> inFlight = new TreeMap<>();
+        private final List<Gauge> gauges = new ArrayList<>();
+        private volatile long received = -1;
+        private volatile long committed = -1;
+        private boolean paused;
+    }
+
+    private static class PendingRecord {
+        private final Acknowledgment ack;
+        private boolean done;
+
+        private PendingRecord(Acknowledgment ack) {
+            this.ack = ack;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.springboot.service;
+
+import com.example.springboot.config.PaymentProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Component
+public class PasswordHasher implements DisposableBean {
+    private final Scheduler scheduler;
+    private final PasswordEncoder timedPasswordEncoder;
+    private final Counter encodeRejected;
+    private final Counter matchesRejected;
+
+    public PasswordHasher(PasswordEncoder passwordEncoder, PaymentProperties paymentProperties, MeterRegistry meterRegistry) {
+        // bcrypt is CPU bound: a small pool rejects a login burst instead of stalling the event loop. A bounded elastic
+        // scheduler caps the queue of each worker, so all threads share one queue to make the size a global bound
+        int threads = paymentProperties.getPasswordHashingThreads();
+        this.scheduler = Schedulers.fromExecutorService(new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(paymentProperties.getPasswordHashingQueueSize()),
+                new CustomizableThreadFactory("password-hashing-"), new ThreadPoolExecutor.AbortPolicy()), "password-hashing");
+        Timer encodeTimer = hashingTimer(meterRegistry, "encode");
+        Timer matchesTimer = hashingTimer(meterRegistry, "matches");
+        this.timedPasswordEncoder = new PasswordEncoder() {
+            @Override
+            public String encode(CharSequence rawPassword) {
+                return encodeTimer.record(() -> passwordEncoder.encode(rawPassword));
+            }
+
+            @Override
+            public boolean matches(CharSequence rawPassword, String encodedPassword) {
+                return Boolean.TRUE.equals(matchesTimer.record(() -> passwordEncoder.matches(rawPassword, encodedPassword)));
+            }
+
+            @Override
+            public boolean upgradeEncoding(String encodedPassword) {
+                return passwordEncoder.upgradeEncoding(encodedPassword);
+            }
+        };
+        this.encodeRejected = rejectedCounter(meterRegistry, "encode");
+        this.matchesRejected = rejectedCounter(meterRegistry, "matches");
+    }
+
+    public Mono<String> encode(CharSequence rawPassword) {
+        return Mono.fromCallable(() -> timedPasswordEncoder.encode(rawPassword))
+                .subscribeOn(scheduler)
+                .onErrorMap(RejectedExecutionException.class, e -> {
+                    encodeRejected.increment();
+                    return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many password requests, try again later", e);
+                });
+    }
+
+    public void recordMatchesRejected() {
+        matchesRejected.increment();
+    }
+
+    public PasswordEncoder getPasswordEncoder() {
+        return timedPasswordEncoder;
+    }
+
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.dispose();
+    }
+
+    private static Timer hashingTimer(MeterRegistry meterRegistry, String operation) {
+        return Timer.builder("payment.password.hashing")
+                .description("Time spent hashing or verifying a password")
+                .tag("operation", operation)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private static Counter rejectedCounter(MeterRegistry meterRegistry, String operation) {
+        return Counter.builder("payment.password.hashing.rejected")
+                .description("Password operations rejected because the hashing queue was full")
+                .tag("operation", operation)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,9 @@
+package com.example.springboot.service;
+
+import com.example.springboot.model.ResponsePaymentDto;
+
+public record PaymentChange(String instanceId, long sequence, ResponsePaymentDto payment) {
+    public String eventId() {
+        return instanceId + "-" + sequence;
+    }
+}
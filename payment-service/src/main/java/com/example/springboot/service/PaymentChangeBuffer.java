@@ -0,0 +1,152 @@
+package com.example.springboot.service;
+
+import com.example.springboot.config.PaymentProperties;
+import com.example.springboot.model.ResponsePaymentDto;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Component
+public class PaymentChangeBuffer {
+    private static final Logger log = LoggerFactory.getLogger(PaymentChangeBuffer.class);
+
+    // access ordered, so the least recently touched user is always the eldest entry; guarded by its own monitor
+    private final LinkedHashMap<String, UserBuffer> buffers = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicInteger size = new AtomicInteger();
+    // sequences are local to this instance, so event ids carry its id and a foreign one is treated as a gap
+    private final String instanceId = UUID.randomUUID().toString();
+    private final AtomicLong sequence = new AtomicLong();
+    private final PaymentProperties paymentProperties;
+    private final Counter capacityEvictions;
+    private final Counter budgetEvictions;
+    private final Counter expiredEvictions;
+
+    public PaymentChangeBuffer(PaymentProperties paymentProperties, MeterRegistry meterRegistry) {
+        this.paymentProperties = paymentProperties;
+        Gauge.builder("payment.dashboard.buffer.size", size, AtomicInteger::get)
+                .description("Payment changes kept for dashboard replay")
+                .register(meterRegistry);
+        Gauge.builder("payment.dashboard.buffer.users", buffers, Map::size)
+                .description("Users with a dashboard replay window")
+                .register(meterRegistry);
+        this.capacityEvictions = evictionCounter(meterRegistry, "capacity");
+        this.budgetEvictions = evictionCounter(meterRegistry, "budget");
+        this.expiredEvictions = evictionCounter(meterRegistry, "expired");
+    }
+
+    public PaymentChange add(String username, ResponsePaymentDto payment) {
+        long now = System.currentTimeMillis();
+        synchronized (buffers) {
+            UserBuffer b = buffers.computeIfAbsent(username, k -> new UserBuffer(sequence.get()));
+            PaymentChange c = new PaymentChange(instanceId, sequence.incrementAndGet(), payment);
+            if (b.changes.remove(payment.requestId()) == null) {
+                size.incrementAndGet();
+            }
+            b.changes.put(payment.requestId(), c);
+            if (b.changes.size() > paymentProperties.getDashboardBufferMaxPerUser()) {
+                Iterator<PaymentChange> eldest = b.changes.values().iterator();
+                b.evictedSequence = Math.max(b.evictedSequence, eldest.next().sequence());
+                eldest.remove();
+                size.decrementAndGet();
+                capacityEvictions.increment();
+            }
+            b.lastUpdated = now;
+            while (size.get() > paymentProperties.getDashboardBufferMaxTotal() && !buffers.isEmpty()) {
+                budgetEvictions.increment(evictLeastRecentlyUpdated());
+            }
+            return c;
+        }
+    }
+
+    public long track(String username) {
+        long now = System.currentTimeMillis();
+        synchronized (buffers) {
+            buffers.computeIfAbsent(username, k -> new UserBuffer(sequence.get())).lastUpdated = now;
+            return sequence.get();
+        }
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public Optional<List<PaymentChange>> replaySince(String username, String lastEventId) {
+        int separator = lastEventId.lastIndexOf('-');
+        if (separator < 0 || !lastEventId.substring(0, separator).equals(instanceId)) {
+            return Optional.empty();
+        }
+        long lastSequence;
+        try {
+            lastSequence = Long.parseLong(lastEventId.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+        synchronized (buffers) {
+            UserBuffer b = buffers.get(username);
+            if (b == null) {
+                return Optional.empty();
+            }
+            b.lastUpdated = System.currentTimeMillis();
+            if (lastSequence < Math.max(b.baseSequence, b.evictedSequence) || lastSequence > sequence.get()) {
+                return Optional.empty();
+            }
+            return Optional.of(b.changes.values().stream()
+                    .filter(c -> c.sequence() > lastSequence)
+                    .toList());
+        }
+    }
+
+    @Scheduled(fixedDelay = 30000, initialDelay = 30000)
+    public void evictExpired() {
+        long expiredBefore = System.currentTimeMillis() - paymentProperties.getDashboardBufferTtlInSecs() * 1000;
+        synchronized (buffers) {
+            Iterator<Map.Entry<String, UserBuffer>> eldest = buffers.entrySet().iterator();
+            while (eldest.hasNext()) {
+                Map.Entry<String, UserBuffer> entry = eldest.next();
+                UserBuffer b = entry.getValue();
+                if (b.lastUpdated >= expiredBefore) {
+                    break;
+                }
+                log.debug("Evicting expired dashboard buffer for user({}): size: {}", entry.getKey(), b.changes.size());
+                size.addAndGet(-b.changes.size());
+                expiredEvictions.increment(b.changes.size());
+                eldest.remove();
+            }
+        }
+    }
+
+    private int evictLeastRecentlyUpdated() {
+        Iterator<Map.Entry<String, UserBuffer>> eldest = buffers.entrySet().iterator();
+        Map.Entry<String, UserBuffer> entry = eldest.next();
+        log.debug("Dashboard buffer budget exceeded, evicting user({})", entry.getKey());
+        eldest.remove();
+        size.addAndGet(-entry.getValue().changes.size());
+        return entry.getValue().changes.size();
+    }
+
+    private static Counter evictionCounter(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("payment.dashboard.buffer.evictions")
+                .description("Payment changes dropped from the dashboard replay window")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    private static class UserBuffer {
+        private final Map<String, PaymentChange> changes = new LinkedHashMap<>();
+        private final long baseSequence;
+        private long evictedSequence;
+        private long lastUpdated;
+
+        private UserBuffer(long baseSequence) {
+            this.baseSequence = baseSequence;
+        }
+    }
+}
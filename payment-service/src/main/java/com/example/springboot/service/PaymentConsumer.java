@@ -1,28 +1,40 @@
 package com.example.springboot.service;
 
 import com.example.schema.avro.UpdatePayment;
+import com.example.springboot.model.ResponsePaymentDto;
 import com.example.springboot.repository.PaymentRepository;
 import com.example.springboot.repository.UserRepository;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.kafka.annotation.DltHandler;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.annotation.RetryableTopic;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.BatchListenerFailedException;
 import org.springframework.kafka.retrytopic.SameIntervalTopicReuseStrategy;
 import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.micrometer.KafkaListenerObservation;
+import org.springframework.kafka.support.micrometer.KafkaRecordReceiverContext;
 import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.handler.annotation.Headers;
 import org.springframework.retry.annotation.Backoff;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
 
 import java.nio.charset.StandardCharsets;
-import java.util.Date;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.function.Function;
 
 @Component
 public class PaymentConsumer {
@@ -36,10 +48,37 @@ public class PaymentConsumer {
 
     private final Executor singleThread = Executors.newSingleThreadExecutor();
 
-    public PaymentConsumer(PaymentRepository paymentRepository, PaymentService paymentService, UserRepository userRepository) {
+    private final DistributionSummary batchSize;
+
+    private final KeyOrderedDispatcher keyOrderedDispatcher;
+
+    private final PartitionOffsetTracker partitionOffsetTracker;
+
+    private final UpdatePaymentDeduplicator updatePaymentDeduplicator;
+
+    private final TransientErrorRetry transientErrorRetry;
+
+    private final ObservationRegistry observationRegistry;
+
+    private final KafkaTemplate<String, Object> kafkaTemplate;
+
+    public PaymentConsumer(PaymentRepository paymentRepository, PaymentService paymentService, UserRepository userRepository,
+                           KeyOrderedDispatcher keyOrderedDispatcher, PartitionOffsetTracker partitionOffsetTracker,
+                           UpdatePaymentDeduplicator updatePaymentDeduplicator, TransientErrorRetry transientErrorRetry,
+                           MeterRegistry meterRegistry, ObservationRegistry observationRegistry, KafkaTemplate<String, Object> kafkaTemplate) {
         this.paymentRepository = paymentRepository;
         this.paymentService = paymentService;
         this.userRepository = userRepository;
+        this.keyOrderedDispatcher = keyOrderedDispatcher;
+        this.partitionOffsetTracker = partitionOffsetTracker;
+        this.updatePaymentDeduplicator = updatePaymentDeduplicator;
+        this.transientErrorRetry = transientErrorRetry;
+        this.observationRegistry = observationRegistry;
+        this.kafkaTemplate = kafkaTemplate;
+        this.batchSize = DistributionSummary.builder("payment.update.batch.size")
+                .description("Records per update-payment-topic batch")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
     }
 
     @RetryableTopic(
@@ -49,24 +88,122 @@ public class PaymentConsumer {
             sameIntervalTopicReuseStrategy = SameIntervalTopicReuseStrategy.SINGLE_TOPIC,
             exclude = {NullPointerException.class}
     )
-    @KafkaListener(topics = "${UPDATE_TOPIC_NAME:update-payment-topic}")
+    @KafkaListener(topics = "${UPDATE_TOPIC_NAME:update-payment-topic}", containerFactory = "manualAckKafkaListenerContainerFactory",
+            autoStartup = "#{'${com.example.update-consumer-mode:BATCH}'.equalsIgnoreCase('RECORD')}")
     public void consume(UpdatePayment updatePayment, @Headers MessageHeaders headers) {
         log.info("### -> Receiving headers: {}", headers);
         extractHeaders(headers, "X-B3-SpanId", "spanId", null);
         extractHeaders(headers, "requestId", "requestId", null);
         extractHeaders(headers, "X-B3-TraceId", "traceId", "### -> Processing traceID={}");
-        paymentService.processPayment(updatePayment)
-                .subscribe(p -> {
-                    log.info("### -> Processed Payment: {}", p);
-                    Acknowledgment ack = headers.get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class);
-                    if (Objects.nonNull(ack)) ack.acknowledge();
+        TopicPartition topicPartition = new TopicPartition(headers.get(KafkaHeaders.RECEIVED_TOPIC, String.class), headers.get(KafkaHeaders.RECEIVED_PARTITION, Integer.class));
+        long offset = headers.get(KafkaHeaders.OFFSET, Long.class);
+        partitionOffsetTracker.begin(topicPartition, offset, headers.get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class));
+        // block so that an update still failing after the in-process retries is handed to the retry topic
+        try {
+            ResponsePaymentDto payment = processOnce(updatePayment)
+                    .retryWhen(transientErrorRetry.retrySpec())
+                    .block();
+            if (payment != null) {
+                log.info("### -> Processed Payment: {}", payment);
+            } else {
+                log.info("### -> Skipped update without changes: {}", updatePayment);
+            }
+        } finally {
+            partitionOffsetTracker.complete(topicPartition, offset);
+        }
+    }
+
+    @KafkaListener(id = "updatePaymentBatch", idIsGroup = false, topics = "${UPDATE_TOPIC_NAME:update-payment-topic}",
+            containerFactory = "batchKafkaListenerContainerFactory", autoStartup = "#{'${com.example.update-consumer-mode:BATCH}'.equalsIgnoreCase('BATCH')}")
+    public void consumeBatch(List<ConsumerRecord<String, UpdatePayment>> records) {
+        log.info("### -> Receiving batch: size: {}", records.size());
+        batchSize.record(records.size());
+        List<UpdatePayment> updatePayments = records.stream().map(ConsumerRecord::value).toList();
+        Map<UpdatePayment, ConsumerRecord<String, UpdatePayment>> recordsByUpdate = new IdentityHashMap<>();
+        records.forEach(r -> recordsByUpdate.put(r.value(), r));
+        Set<String> seen = new HashSet<>(Objects.requireNonNull(updatePaymentDeduplicator.findProcessed(updatePayments).block()));
+        List<Integer> indexes = new ArrayList<>();
+        List<UpdatePayment> pending = new ArrayList<>();
+        for (int i = 0; i < updatePayments.size(); i++) {
+            if (seen.add(UpdatePaymentDeduplicator.key(updatePayments.get(i)))) {
+                indexes.add(i);
+                pending.add(updatePayments.get(i));
+            }
+        }
+        log.debug("Skipping already processed updates: size: {}", updatePayments.size() - pending.size());
+        int processed = (pending.isEmpty() ? 0 : Objects.requireNonNull(processPaymentsWithRetry(pending, u -> observation(recordsByUpdate.get(u))).block()));
+        updatePaymentDeduplicator.markProcessed(pending.subList(0, processed)).block();
+        if (processed < pending.size()) {
+            throw new BatchListenerFailedException("Not found Payment for requestId: " + pending.get(processed).getRequestId(), indexes.get(processed));
+        }
+    }
+
+    @KafkaListener(id = "updatePaymentKeyOrdered", idIsGroup = false, topics = "${UPDATE_TOPIC_NAME:update-payment-topic}",
+            containerFactory = "manualAckKafkaListenerContainerFactory", autoStartup = "#{'${com.example.update-consumer-mode:BATCH}'.equalsIgnoreCase('KEY_ORDERED')}")
+    public void consumeKeyOrdered(ConsumerRecord<String, UpdatePayment> record, Acknowledgment ack) {
+        UpdatePayment updatePayment = record.value();
+        TopicPartition topicPartition = new TopicPartition(record.topic(), record.partition());
+        partitionOffsetTracker.begin(topicPartition, record.offset(), ack);
+        keyOrderedDispatcher.dispatch(updatePayment.getRequestId(), () -> processOnce(updatePayment)
+                        .retryWhen(transientErrorRetry.retrySpec()))
+                .whenComplete((p, e) -> {
+                    if (e != null) {
+                        deadLetter(record, topicPartition, e);
+                        return;
+                    }
+                    if (p != null) {
+                        log.info("### -> Processed Payment: {}", p);
+                    } else {
+                        log.info("### -> Skipped update without changes: {}", updatePayment);
+                    }
+                    partitionOffsetTracker.complete(topicPartition, record.offset());
+                });
+    }
+
+    // the offset only completes once the record is safely on the DLT, a failed send leaves it uncommitted
+    // so it is delivered again after the next rebalance or restart
+    private void deadLetter(ConsumerRecord<String, UpdatePayment> record, TopicPartition topicPartition, Throwable e) {
+        kafkaTemplate.send(record.topic() + "-dlt", record.key(), record.value())
+                .whenComplete((result, sendFailure) -> {
+                    if (sendFailure != null) {
+                        log.error("Event from topic {} partition {} offset {} could not be dead lettered - event:{}", record.topic(), record.partition(), record.offset(), record.value(), sendFailure);
+                        return;
+                    }
+                    log.error("Event from topic {} partition {} offset {} is dead lettered - event:{}", record.topic(), record.partition(), record.offset(), record.value(), e);
+                    partitionOffsetTracker.complete(topicPartition, record.offset());
                 });
     }
 
-    @Scheduled(fixedDelay = 5000, initialDelay = 1000)
-    public void scheduledExpiredPayment() {
-        paymentService.declineExpiredPayments()
-                .subscribe(p -> log.debug("Declined payment - reason expired time: {}", p));
+    private Mono<Integer> processPaymentsWithRetry(List<UpdatePayment> pending, Function<UpdatePayment, Observation> observations) {
+        AtomicInteger processed = new AtomicInteger();
+        return Mono.defer(() -> paymentService.processPayments(pending.subList(processed.get(), pending.size()), observations)
+                        .flatMap(count -> {
+                            if (processed.addAndGet(count) < pending.size()) {
+                                return Mono.error(new PaymentNotFoundException(pending.get(processed.get()).getRequestId()));
+                            }
+                            return Mono.just(processed.get());
+                        }))
+                .retryWhen(transientErrorRetry.retrySpec())
+                .onErrorResume(PaymentNotFoundException.class, e -> Mono.just(processed.get()));
+    }
+
+    private Observation observation(ConsumerRecord<String, UpdatePayment> record) {
+        return KafkaListenerObservation.LISTENER_OBSERVATION.observation(null, KafkaListenerObservation.DefaultKafkaListenerObservationConvention.INSTANCE,
+                () -> new KafkaRecordReceiverContext(record, "updatePaymentBatch", () -> null), observationRegistry);
+    }
+
+    private Mono<ResponsePaymentDto> processOnce(UpdatePayment updatePayment) {
+        return updatePaymentDeduplicator.isProcessed(updatePayment)
+                .flatMap(duplicate -> {
+                    if (duplicate) {
+                        log.debug("Skipping already processed update: {}", updatePayment);
+                        return Mono.empty();
+                    }
+                    // a no-op update (repeated check, payment already final) is as done as an applied one
+                    return paymentService.processPayment(updatePayment)
+                            .flatMap(p -> updatePaymentDeduplicator.markProcessed(List.of(updatePayment)).thenReturn(p))
+                            .switchIfEmpty(Mono.defer(() -> updatePaymentDeduplicator.markProcessed(List.of(updatePayment))).then(Mono.empty()));
+                });
     }
 
     private void extractHeaders(MessageHeaders headers, String header, String mdcKey, String msg) {
@@ -83,5 +220,7 @@ public class PaymentConsumer {
     @DltHandler
     public void dlt(UpdatePayment data, @Headers MessageHeaders headers) {
         log.error("Event from topic {}  is dead lettered - event:{}", headers, data);
+        Acknowledgment ack = headers.get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class);
+        if (Objects.nonNull(ack)) ack.acknowledge();
     }
 }
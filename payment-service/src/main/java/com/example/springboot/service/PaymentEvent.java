@@ -1,11 +1,22 @@
 package com.example.springboot.service;
 
+import com.example.springboot.model.PaymentStatus;
 import com.example.springboot.model.ResponsePaymentDto;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 public record PaymentEvent(ResponsePaymentDto payment) {
 
+    public List<String> recipients() {
+        if (payment.status() == PaymentStatus.COMPLETED) {
+            return Arrays.asList(payment.usernameTo(), payment.usernameFrom());
+        }
+        return Collections.singletonList(payment.usernameFrom());
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
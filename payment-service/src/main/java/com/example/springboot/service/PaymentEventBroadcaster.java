@@ -0,0 +1,130 @@
+package com.example.springboot.service;
+
+import com.example.springboot.config.PaymentProperties;
+import com.example.springboot.model.ResponsePaymentDto;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.stream.StreamReceiver;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+@Component
+public class PaymentEventBroadcaster {
+    private static final Logger log = LoggerFactory.getLogger(PaymentEventBroadcaster.class);
+    private static final String STREAM_KEY = "paymentEvents";
+    private static final TypeReference<List<ResponsePaymentDto>> PAYMENTS_TYPE = new TypeReference<>() {};
+
+    private final String instanceId = UUID.randomUUID().toString();
+    private final Sinks.Many<ResponsePaymentDto> outbound = Sinks.many().unicast().onBackpressureBuffer();
+    private final ReactiveStringRedisTemplate stringRedisOperations;
+    private final ReactiveRedisConnectionFactory connectionFactory;
+    private final PaymentStreamRegistry paymentStreamRegistry;
+    private final PaymentChangeBuffer paymentChangeBuffer;
+    private final PaymentProperties paymentProperties;
+    private final ObjectMapper objectMapper;
+    private volatile Disposable publisher;
+    private Disposable receiver;
+
+    public PaymentEventBroadcaster(ReactiveStringRedisTemplate stringRedisOperations, ReactiveRedisConnectionFactory connectionFactory,
+                                   PaymentStreamRegistry paymentStreamRegistry, PaymentChangeBuffer paymentChangeBuffer,
+                                   PaymentProperties paymentProperties, ObjectMapper objectMapper) {
+        this.stringRedisOperations = stringRedisOperations;
+        this.connectionFactory = connectionFactory;
+        this.paymentStreamRegistry = paymentStreamRegistry;
+        this.paymentChangeBuffer = paymentChangeBuffer;
+        this.paymentProperties = paymentProperties;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!paymentProperties.isDashboardBroadcastEnabled()) {
+            log.info("Dashboard broadcast across replicas is disabled");
+            return;
+        }
+        publisher = outbound.asFlux()
+                .bufferTimeout(paymentProperties.getDashboardBroadcastBatchSize(), Duration.ofMillis(paymentProperties.getDashboardBroadcastBatchWindowInMillis()))
+                .concatMap(this::publishBatch)
+                .subscribe();
+
+        StreamReceiver<String, MapRecord<String, String, String>> streamReceiver = StreamReceiver.create(connectionFactory,
+                StreamReceiver.StreamReceiverOptions.builder()
+                        .pollTimeout(Duration.ofSeconds(1))
+                        .batchSize(paymentProperties.getDashboardBroadcastBatchSize())
+                        .build());
+        // starts at the tail, then each poll continues from the last delivered id so entries added between polls are not skipped
+        receiver = streamReceiver.receive(StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed()))
+                .filter(r -> !instanceId.equals(r.getValue().get("origin")))
+                .flatMapIterable(r -> readPayments(r.getValue().get("payments")))
+                .doOnError(e -> log.warn("Failed to receive dashboard broadcast", e))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(30)))
+                .subscribe(this::deliverLocally);
+    }
+
+    @PreDestroy
+    public void stop() {
+        outbound.tryEmitComplete();
+        if (publisher != null) publisher.dispose();
+        if (receiver != null) receiver.dispose();
+    }
+
+    public synchronized void publish(ResponsePaymentDto payment) {
+        if (publisher == null) {
+            return;
+        }
+        Sinks.EmitResult result = outbound.tryEmitNext(payment);
+        if (result.isFailure()) {
+            log.warn("Failed to queue payment for dashboard broadcast: {}", result);
+        }
+    }
+
+    private void deliverLocally(ResponsePaymentDto payment) {
+        for (String username : new PaymentEvent(payment).recipients()) {
+            if (paymentStreamRegistry.isConnected(username)) {
+                paymentStreamRegistry.emit(username, paymentChangeBuffer.add(username, payment));
+            }
+        }
+    }
+
+    private Mono<Void> publishBatch(List<ResponsePaymentDto> payments) {
+        return Mono.fromCallable(() -> objectMapper.writeValueAsString(payments))
+                .flatMap(json -> stringRedisOperations.opsForStream()
+                        .add(StreamRecords.string(Map.of("origin", instanceId, "payments", json)).withStreamKey(STREAM_KEY)))
+                .flatMap(id -> stringRedisOperations.opsForStream().trim(STREAM_KEY, paymentProperties.getDashboardBroadcastStreamMaxLength(), true))
+                .doOnSuccess(c -> log.debug("Broadcast dashboard batch: size: {}", payments.size()))
+                .onErrorResume(e -> {
+                    log.warn("Failed to broadcast dashboard batch: size: {}", payments.size(), e);
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private List<ResponsePaymentDto> readPayments(String json) {
+        try {
+            return objectMapper.readValue(json, PAYMENTS_TYPE);
+        } catch (JsonProcessingException e) {
+            log.warn("Ignoring malformed dashboard broadcast", e);
+            return Collections.emptyList();
+        }
+    }
+}
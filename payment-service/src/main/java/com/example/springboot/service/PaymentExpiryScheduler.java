@@ -0,0 +1,137 @@
+package com.example.springboot.service;
+
+import com.example.springboot.config.PaymentProperties;
+import com.example.springboot.model.ResponsePaymentDto;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Component
+public class PaymentExpiryScheduler {
+    private static final Logger log = LoggerFactory.getLogger(PaymentExpiryScheduler.class);
+
+    private final Map<String, Timeout> timeouts = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final HashedWheelTimer timer;
+    private final PaymentService paymentService;
+    private final PaymentProperties paymentProperties;
+    private final MeterRegistry meterRegistry;
+    private final Timer sweepTimer;
+    private final DistributionSummary sweepRows;
+    private final Counter skippedSweeps;
+
+    public PaymentExpiryScheduler(PaymentService paymentService, PaymentProperties paymentProperties, MeterRegistry meterRegistry) {
+        this.paymentService = paymentService;
+        this.paymentProperties = paymentProperties;
+        this.meterRegistry = meterRegistry;
+        this.timer = new HashedWheelTimer(r -> {
+            Thread thread = new Thread(r, "payment-expiry-timer");
+            thread.setDaemon(true);
+            return thread;
+        }, paymentProperties.getExpireTimerTickInMillis(), TimeUnit.MILLISECONDS, 512);
+        Gauge.builder("payment.expiry.scheduled", timeouts, Map::size)
+                .description("Pending payments with a registered expiry deadline")
+                .register(meterRegistry);
+        this.sweepTimer = Timer.builder("payment.expiry.sweep")
+                .description("Duration of an expired payments sweep")
+                .register(meterRegistry);
+        this.sweepRows = DistributionSummary.builder("payment.expiry.sweep.rows")
+                .description("Payments declined by an expired payments sweep")
+                .register(meterRegistry);
+        this.skippedSweeps = Counter.builder("payment.expiry.sweep.skipped")
+                .description("Sweeps skipped because the previous one was still running")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${com.example.expire-sweep-delay-in-millis:60000}", initialDelay = 1000)
+    public void sweep() {
+        if (!sweeping.compareAndSet(false, true)) {
+            log.debug("Previous expired payments sweep is still running");
+            skippedSweeps.increment();
+            return;
+        }
+        int shards = paymentProperties.getExpireSweepShards();
+        int offset = ThreadLocalRandom.current().nextInt(shards);
+        Timer.Sample sample = Timer.start(meterRegistry);
+        Flux.range(0, shards)
+                .concatMap(i -> paymentService.declineExpiredPayments((i + offset) % shards, shards))
+                .doOnNext(p -> log.debug("Declined payment - reason expired time: {}", p))
+                .count()
+                .doFinally(signal -> {
+                    sample.stop(sweepTimer);
+                    sweeping.set(false);
+                })
+                .subscribe(sweepRows::record, e -> log.error("Failed to sweep expired payments", e));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        paymentService.findPendingPayments()
+                .doOnNext(p -> schedule(p.getRequestId(), p.getCreatedAt()))
+                .count()
+                .subscribe(c -> log.info("Rebuilt payment expiry timers: size: {}", c),
+                        e -> log.error("Failed to rebuild payment expiry timers", e));
+    }
+
+    @TransactionalEventListener
+    public void onPaymentEvent(PaymentEvent paymentEvent) {
+        ResponsePaymentDto payment = paymentEvent.payment();
+        if (payment.status().isPending()) {
+            schedule(payment.requestId(), payment.createdAt());
+        } else {
+            cancel(payment.requestId());
+        }
+    }
+
+    public void schedule(String requestId, Instant createdAt) {
+        Instant deadline = createdAt.plusSeconds(paymentProperties.getExpirePaymentInSecs());
+        long delay = Math.max(0, Duration.between(Instant.now(), deadline).toMillis());
+        Timeout timeout = timer.newTimeout(t -> expire(requestId, t), delay, TimeUnit.MILLISECONDS);
+        Timeout previous = timeouts.put(requestId, timeout);
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    public void cancel(String requestId) {
+        Timeout timeout = timeouts.remove(requestId);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        timer.stop();
+    }
+
+    private void expire(String requestId, Timeout timeout) {
+        if (!timeouts.remove(requestId, timeout)) {
+            return;
+        }
+        paymentService.declineExpiredPayment(requestId)
+                .subscribe(p -> log.debug("Declined payment - reason expired time: {}", p),
+                        e -> log.error("Failed to decline expired payment: {}", requestId, e));
+    }
+}
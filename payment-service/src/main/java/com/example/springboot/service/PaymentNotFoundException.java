@@ -0,0 +1,7 @@
+package com.example.springboot.service;
+
+public class PaymentNotFoundException extends IllegalStateException {
+    public PaymentNotFoundException(String requestId) {
+        super("Not found Payment for requestId: " + requestId);
+    }
+}
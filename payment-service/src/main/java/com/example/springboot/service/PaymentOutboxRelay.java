@@ -0,0 +1,190 @@
+package com.example.springboot.service;
+
+import com.example.springboot.config.PaymentProperties;
+import com.example.springboot.model.PaymentOutbox;
+import com.example.springboot.repository.PaymentOutboxRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.tracing.CurrentTraceContext;
+import io.micrometer.tracing.TraceContext;
+import io.micrometer.tracing.Tracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Component
+public class PaymentOutboxRelay {
+    private static final Logger log = LoggerFactory.getLogger(PaymentOutboxRelay.class);
+
+    private final AtomicBoolean relaying = new AtomicBoolean();
+    private final AtomicLong lagInMillis = new AtomicLong();
+    private final PaymentOutboxRepository paymentOutboxRepository;
+    private final KafkaTemplate<String, Object> kafkaTemplate;
+    private final PaymentProperties paymentProperties;
+    private final Tracer tracer;
+    private final Counter sent;
+    private final Counter failed;
+    private final Counter deadLettered;
+    private final DistributionSummary batchSize;
+    @Value("${TOPIC_NAME:payment-topic}")
+    private String topic;
+
+    public PaymentOutboxRelay(PaymentOutboxRepository paymentOutboxRepository, KafkaTemplate<String, Object> kafkaTemplate,
+                              PaymentProperties paymentProperties, Tracer tracer, MeterRegistry meterRegistry) {
+        this.paymentOutboxRepository = paymentOutboxRepository;
+        this.kafkaTemplate = kafkaTemplate;
+        this.paymentProperties = paymentProperties;
+        this.tracer = tracer;
+        Gauge.builder("payment.outbox.lag", lagInMillis, l -> l.get() / 1000.0)
+                .description("Age of the oldest payment waiting in the outbox")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        this.sent = Counter.builder("payment.outbox.sent")
+                .description("Payments relayed from the outbox to kafka")
+                .register(meterRegistry);
+        this.failed = Counter.builder("payment.outbox.failed")
+                .description("Outbox payments that failed to be sent to kafka")
+                .register(meterRegistry);
+        this.deadLettered = Counter.builder("payment.outbox.dead.lettered")
+                .description("Outbox payments given up on after too many failed sends")
+                .register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("payment.outbox.batch.size")
+                .description("Payments read from the outbox per relay batch")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${com.example.outbox-relay-delay-in-millis:100}", initialDelay = 1000)
+    public void relay() {
+        if (!relaying.compareAndSet(false, true)) {
+            return;
+        }
+        int limit = paymentProperties.getOutboxBatchSize();
+        relayBatch(limit)
+                .expand(count -> count < limit ? Mono.empty() : relayBatch(limit))
+                .then(paymentOutboxRepository.findOldestUnsentCreatedAt()
+                        .map(oldest -> Duration.between(oldest, Instant.now()).toMillis())
+                        .defaultIfEmpty(0L))
+                .doFinally(signal -> relaying.set(false))
+                .subscribe(lagInMillis::set, e -> log.error("Failed to relay payment outbox", e));
+    }
+
+    @TransactionalEventListener
+    public void onPaymentEvent(PaymentEvent paymentEvent) {
+        if (paymentEvent.payment().status().isPending()) {
+            relay();
+        }
+    }
+
+    @Scheduled(fixedDelay = 60000, initialDelay = 60000)
+    public void purgeSent() {
+        paymentOutboxRepository.deleteSentBefore(Instant.now().minusSeconds(paymentProperties.getOutboxRetentionInSecs()))
+                .subscribe(c -> log.debug("Purged sent payment outbox: size: {}", c),
+                        e -> log.error("Failed to purge payment outbox", e));
+    }
+
+    private Mono<Integer> relayBatch(int limit) {
+        Instant now = Instant.now();
+        return paymentOutboxRepository.claimUnsent(limit, now, now.plusMillis(paymentProperties.getOutboxClaimLeaseInMillis()))
+                .sort(Comparator.comparing(PaymentOutbox::getId))
+                .collectList()
+                .flatMap(batch -> {
+                    batchSize.record(batch.size());
+                    if (batch.isEmpty()) {
+                        return Mono.just(0);
+                    }
+                    return Flux.fromIterable(batch)
+                            .flatMapSequential(this::send, paymentProperties.getOutboxMaxInFlight())
+                            .collectList()
+                            .flatMap(sentIds -> markSent(sentIds)
+                                    .then(markFailed(batch.stream()
+                                            .map(PaymentOutbox::getId)
+                                            .filter(id -> !sentIds.contains(id))
+                                            .toList())))
+                            .thenReturn(batch.size());
+                });
+    }
+
+    private Mono<Long> send(PaymentOutbox outbox) {
+        // send() blocks up to max.block.ms while the producer buffer is full, keep it off the r2dbc threads
+        return Mono.fromFuture(() -> sendInTraceScope(outbox))
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(r -> outbox.getId())
+                .doOnSuccess(r -> log.info("Sent kafka message: {}", outbox))
+                .onErrorResume(e -> {
+                    log.error("Failed to send kafka message: {}", outbox, e);
+                    failed.increment();
+                    return Mono.empty();
+                });
+    }
+
+    private CompletableFuture<SendResult<String, Object>> sendInTraceScope(PaymentOutbox outbox) {
+        if (outbox.getTraceId() == null) {
+            return kafkaTemplate.send(topic, outbox.getRequestId(), toAvro(outbox));
+        }
+        TraceContext traceContext = tracer.traceContextBuilder()
+                .traceId(outbox.getTraceId())
+                .spanId(outbox.getSpanId())
+                .sampled(true)
+                .build();
+        try (CurrentTraceContext.Scope scope = tracer.currentTraceContext().newScope(traceContext)) {
+            return kafkaTemplate.send(topic, outbox.getRequestId(), toAvro(outbox));
+        }
+    }
+
+    private Mono<Integer> markSent(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Mono.just(0);
+        }
+        return paymentOutboxRepository.markSent(ids, Instant.now())
+                .doOnNext(sent::increment);
+    }
+
+    // a failing row is retried after a delay instead of blocking the rows behind it, and parked once it runs out of attempts
+    private Mono<Integer> markFailed(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Mono.just(0);
+        }
+        Instant now = Instant.now();
+        return paymentOutboxRepository.markFailed(ids, now.plusMillis(paymentProperties.getOutboxRetryDelayInMillis()))
+                .then(paymentOutboxRepository.deadLetter(ids, paymentProperties.getOutboxMaxAttempts(), now))
+                .doOnNext(c -> {
+                    if (c > 0) {
+                        log.error("Dead lettered payment outbox after {} attempts: size: {}", paymentProperties.getOutboxMaxAttempts(), c);
+                        deadLettered.increment(c);
+                    }
+                });
+    }
+
+    private com.example.schema.avro.Payment toAvro(PaymentOutbox outbox) {
+        com.example.schema.avro.Payment payment = new com.example.schema.avro.Payment();
+        payment.setRequestId(outbox.getRequestId());
+        payment.setCreatedAt(outbox.getCreatedAt());
+        payment.setTotal(outbox.getTotal().setScale(2, RoundingMode.HALF_UP));
+        payment.setUsernameFrom(outbox.getUsernameFrom());
+        payment.setUsernameFromAddress(Objects.requireNonNullElse(outbox.getUsernameFromAddress(), ""));
+        payment.setUsernameTo(outbox.getUsernameTo());
+        payment.setUsernameToAddress(Objects.requireNonNullElse(outbox.getUsernameToAddress(), ""));
+        payment.setStatus(outbox.getStatus());
+        return payment;
+    }
+}
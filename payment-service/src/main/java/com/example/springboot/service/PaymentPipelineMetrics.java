@@ -0,0 +1,57 @@
+package com.example.springboot.service;
+
+import com.example.schema.avro.CheckStatus;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+
+@Component
+public class PaymentPipelineMetrics {
+    private final Map<CheckStatus, Timer> checks = new EnumMap<>(CheckStatus.class);
+    private final Timer waitingForUserConfirmation;
+    private final Timer completed;
+
+    public PaymentPipelineMetrics(MeterRegistry meterRegistry) {
+        for (CheckStatus status : CheckStatus.values()) {
+            checks.put(status, timer(meterRegistry, status.name().toLowerCase(), "Time from payment creation to the check update"));
+        }
+        this.waitingForUserConfirmation = timer(meterRegistry, "waiting_for_user_confirmation", "Time from payment creation until all checks passed");
+        this.completed = timer(meterRegistry, "completed", "Time from waiting for user confirmation until the payment completed");
+    }
+
+    public void recordCheck(CheckStatus status, Instant createdAt, Instant updateAt) {
+        record(checks.get(status), createdAt, updateAt);
+    }
+
+    public void recordWaitingForUserConfirmation(Instant createdAt, Instant waitingAt) {
+        record(waitingForUserConfirmation, createdAt, waitingAt);
+    }
+
+    public void recordCompleted(Instant waitingAt, Instant completedAt) {
+        record(completed, waitingAt, completedAt);
+    }
+
+    private static void record(Timer timer, Instant from, Instant to) {
+        if (timer == null || from == null || to == null) {
+            return;
+        }
+        // the check services stamp updateAt with their own clocks
+        Duration duration = Duration.between(from, to);
+        timer.record(duration.isNegative() ? Duration.ZERO : duration);
+    }
+
+    private static Timer timer(MeterRegistry meterRegistry, String stage, String description) {
+        return Timer.builder("payment.pipeline.latency")
+                .description(description)
+                .tag("stage", stage)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(10))
+                .maximumExpectedValue(Duration.ofMinutes(2))
+                .register(meterRegistry);
+    }
+}
@@ -4,130 +4,231 @@ import com.example.schema.avro.CheckStatus;
 import com.example.schema.avro.UpdatePayment;
 import com.example.springboot.config.PaymentProperties;
 import com.example.springboot.model.*;
+import com.example.springboot.repository.PaymentOutboxRepository;
 import com.example.springboot.repository.PaymentRepository;
-import com.example.springboot.repository.UserRepository;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.observation.Observation;
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.http.HttpStatus;
-import org.springframework.kafka.core.KafkaTemplate;
-import org.springframework.security.access.prepost.PostFilter;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.security.authentication.AuthenticationCredentialsNotFoundException;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.ReactiveSecurityContextHolder;
+import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.event.TransactionalEventListener;
 import org.springframework.transaction.reactive.TransactionalEventPublisher;
+import org.springframework.transaction.reactive.TransactionalOperator;
 import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.util.function.Tuple2;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.*;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Service
 public class PaymentService {
     private static final Logger log = LoggerFactory.getLogger(PaymentService.class);
+    private static final String NOTIFICATION_KEY = "notificationKey_%s";
+    private static final String USER_NOTIFICATIONS_KEY = "userNotifications_%s";
+    private static final String NOTIFICATION_CHANNEL = "notificationChannel_%s";
+    private static final String NOTIFICATION_REMOVED_CHANNEL = "notificationRemovedChannel_%s";
     private final PaymentRepository paymentRepository;
 
-    private final UserRepository userRepository;
+    private final UserCache userCache;
     private final ApplicationEventPublisher applicationEventPublisher;
-    private final KafkaTemplate<String, Object> kafkaTemplate;
-    @Value("${TOPIC_NAME:payment-topic}")
-    private String topic;
-    private static final Map<String, List<ResponsePaymentDto>> mapPayments = new ConcurrentHashMap<>();
-    private static final ExecutorService executor = Executors.newCachedThreadPool();
+    private final PaymentOutboxRepository paymentOutboxRepository;
+    private final Tracer tracer;
+    private final PaymentPipelineMetrics paymentPipelineMetrics;
     private final PaymentProperties paymentProperties;
     private final ReactiveRedisOperations<String, NotificationResponseDto> redisOperations;
+    private final ReactiveStringRedisTemplate stringRedisOperations;
+    private final ReactiveRedisMessageListenerContainer redisMessageListenerContainer;
     private final ObjectMapper objectMapper;
+    private final PaymentStreamRegistry paymentStreamRegistry;
+    private final PaymentChangeBuffer paymentChangeBuffer;
+    private final PaymentEventBroadcaster paymentEventBroadcaster;
+    private final AccountTransferLanes accountTransferLanes;
+    private final TransactionalOperator transactionalOperator;
 
-    PaymentService(PaymentRepository paymentRepository, UserRepository userRepository, ApplicationEventPublisher applicationEventPublisher,
-                   KafkaTemplate<String, Object> kafkaTemplate, PaymentProperties paymentProperties,
-                   ReactiveRedisOperations<String, NotificationResponseDto> redisOperations, ObjectMapper objectMapper) {
+    PaymentService(PaymentRepository paymentRepository, UserCache userCache, ApplicationEventPublisher applicationEventPublisher,
+                   PaymentOutboxRepository paymentOutboxRepository, PaymentProperties paymentProperties,
+                   ReactiveRedisOperations<String, NotificationResponseDto> redisOperations, ReactiveStringRedisTemplate stringRedisOperations,
+                   ReactiveRedisMessageListenerContainer redisMessageListenerContainer, ObjectMapper objectMapper,
+                   PaymentStreamRegistry paymentStreamRegistry, PaymentChangeBuffer paymentChangeBuffer,
+                   PaymentEventBroadcaster paymentEventBroadcaster, Tracer tracer, PaymentPipelineMetrics paymentPipelineMetrics,
+                   AccountTransferLanes accountTransferLanes, TransactionalOperator transactionalOperator) {
         this.paymentRepository = paymentRepository;
-        this.userRepository = userRepository;
+        this.userCache = userCache;
         this.applicationEventPublisher = applicationEventPublisher;
-        this.kafkaTemplate = kafkaTemplate;
+        this.paymentOutboxRepository = paymentOutboxRepository;
         this.paymentProperties = paymentProperties;
         this.redisOperations = redisOperations;
+        this.stringRedisOperations = stringRedisOperations;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
         this.objectMapper = objectMapper;
+        this.paymentStreamRegistry = paymentStreamRegistry;
+        this.paymentChangeBuffer = paymentChangeBuffer;
+        this.paymentEventBroadcaster = paymentEventBroadcaster;
+        this.tracer = tracer;
+        this.paymentPipelineMetrics = paymentPipelineMetrics;
+        this.accountTransferLanes = accountTransferLanes;
+        this.transactionalOperator = transactionalOperator;
     }
 
     @Transactional
-    public Flux<ResponsePaymentDto> declineExpiredPayments() {
-        return paymentRepository.findExpiredPayments(paymentProperties.getExpirePaymentInSecs())
+    public Flux<ResponsePaymentDto> declineExpiredPayments(int shard, int shards) {
+        int batchSize = paymentProperties.getExpireBatchSize();
+        return paymentRepository.tryLockExpiryShard(shard)
+                .filter(locked -> {
+                    if (!locked) {
+                        log.debug("Expiry shard({}) is being swept by another instance", shard);
+                    }
+                    return locked;
+                })
+                .flatMapMany(locked -> declineExpiredPaymentsBatch(batchSize, shard, shards)
+                        .expand(batch -> batch.size() < batchSize ? Mono.empty() : declineExpiredPaymentsBatch(batchSize, shard, shards)))
+                .flatMapIterable(Function.identity())
                 .flatMap(p -> {
-                    log.debug("Declining payment: {}", p);
-                    p.setMessage("\uD83D\uDE21 Payment expired!");
-                    p.setStatus(PaymentStatus.DECLINED);
-                    p.setProcessedAt(Instant.now());
-                    return paymentRepository.save(p);
-                }).flatMap(p -> publishPaymentEvent(new ResponsePaymentDto(p)));
+                    log.debug("Declined payment: {}", p);
+                    return publishPaymentEvent(new ResponsePaymentDto(p));
+                });
+    }
+
+    @Transactional
+    public Mono<ResponsePaymentDto> declineExpiredPayment(String requestId) {
+        Instant now = Instant.now();
+        return paymentRepository.declineExpiredPayment(requestId, now.minusSeconds(paymentProperties.getExpirePaymentInSecs()), "\uD83D\uDE21 Payment expired!", now)
+                .flatMap(p -> publishPaymentEvent(new ResponsePaymentDto(p)));
+    }
+
+    @Transactional(readOnly = true)
+    public Flux<Payment> findPendingPayments() {
+        return paymentRepository.findByStatusIn(PaymentStatus.pending().stream().map(Enum::name).toList());
+    }
+
+    private Mono<List<Payment>> declineExpiredPaymentsBatch(int batchSize, int shard, int shards) {
+        Instant now = Instant.now();
+        return paymentRepository.declineExpiredPayments(now.minusSeconds(paymentProperties.getExpirePaymentInSecs()), "\uD83D\uDE21 Payment expired!", now, batchSize, shard, shards)
+                .collectList();
     }
 
 
     public Flux<NotificationResponseDto> getNotificationsByUsername(String username) {
-        return redisOperations.keys("notificationKey_*")
-                .flatMap(k -> redisOperations.opsForValue().get(k))
-                .filter(n -> n.usernameTo().equals(username));
+        String userKey = String.format(USER_NOTIFICATIONS_KEY, username);
+        double now = Instant.now().toEpochMilli();
+        return stringRedisOperations.opsForZSet().removeRangeByScore(userKey, Range.leftUnbounded(Range.Bound.inclusive(now)))
+                .thenMany(stringRedisOperations.opsForZSet().rangeByScore(userKey, Range.rightUnbounded(Range.Bound.exclusive(now))))
+                .map(requestId -> String.format(NOTIFICATION_KEY, requestId))
+                .collectList()
+                .filter(keys -> !keys.isEmpty())
+                .flatMap(keys -> redisOperations.opsForValue().multiGet(keys))
+                .flatMapIterable(Function.identity())
+                .filter(Objects::nonNull);
+    }
+
+    public Flux<ServerSentEvent<NotificationResponseDto>> listenNotificationsByUsername(String username) {
+        String removedChannel = String.format(NOTIFICATION_REMOVED_CHANNEL, username);
+        List<ChannelTopic> topics = Arrays.asList(ChannelTopic.of(String.format(NOTIFICATION_CHANNEL, username)), ChannelTopic.of(removedChannel));
+        return redisMessageListenerContainer.receiveLater(topics, RedisSerializationContext.SerializationPair.fromSerializer(RedisSerializer.string()),
+                        redisOperations.getSerializationContext().getValueSerializationPair())
+                .flatMapMany(messages -> messages
+                        .map(m -> ServerSentEvent.builder(m.getMessage())
+                                .event(m.getChannel().equals(removedChannel) ? "removed" : "notification")
+                                .build())
+                        .mergeWith(getNotificationsByUsername(username)
+                                .map(n -> ServerSentEvent.builder(n).event("notification").build())));
     }
 
     @TransactionalEventListener
     public void listenLastPaymentChanges(PaymentEvent paymentEvent) {
         log.info("Listening events after committing transaction: {}", paymentEvent);
         ResponsePaymentDto payment = paymentEvent.payment();
-        if (payment.status() == PaymentStatus.COMPLETED) {
-            List<ResponsePaymentDto> lastPaymentsModified = mapPayments.computeIfAbsent(payment.usernameTo(), k -> new ArrayList<>());
-            lastPaymentsModified.add(payment);
+        for (String username : paymentEvent.recipients()) {
+            dispatchPaymentChange(username, payment);
         }
-        List<ResponsePaymentDto> lastPaymentsModified = mapPayments.computeIfAbsent(payment.usernameFrom(), k -> new ArrayList<>());
-        lastPaymentsModified.add(payment);
+        paymentEventBroadcaster.publish(payment);
     }
 
-    private Flux<ResponsePaymentDto> getLastPaymentsModifiedByUsername(String username) {
-        List<ResponsePaymentDto> payments = mapPayments.remove(username);
-        return payments != null ? Flux.fromIterable(payments) : Flux.empty();
+    private void dispatchPaymentChange(String username, ResponsePaymentDto payment) {
+        paymentStreamRegistry.emit(username, paymentChangeBuffer.add(username, payment));
     }
 
+    // non-admin callers only see payments they send or receive, enforced in the query instead of filtering loaded rows
     @Transactional(readOnly = true)
-    @PostFilter("hasAuthority('ADMIN') or filterObject.usernameFrom == @paymentService.getUsername(authentication) or filterObject.usernameTo == @paymentService.getUsername(authentication)")
-    public Flux<ResponsePaymentDto> getAllByUsernameFrom(String username, AtomicBoolean firstVisit) {
-        Flux<ResponsePaymentDto> payments = Flux.empty();
-        if (firstVisit.getAndSet(false)) {
-            if (username.equals("admin")) {
-                payments = paymentRepository.findAll()
-                        .map(ResponsePaymentDto::new);
-            } else {
-                payments = paymentRepository.findByUsernameFrom(username)
-                        .map(ResponsePaymentDto::new);
-            }
+    public Flux<PaymentChange> getAllByUsernameFrom(String username) {
+        return currentCaller().flatMapMany(caller -> {
+            long sequence = paymentChangeBuffer.track(username);
+            int limit = paymentProperties.getDashboardPageSize();
+            Flux<Payment> payments = (caller.admin() ? paymentRepository.findFirstPage(limit)
+                    : paymentRepository.findFirstPageVisibleTo(caller.username(), limit));
+            return payments.map(p -> new PaymentChange(paymentChangeBuffer.getInstanceId(), sequence, new ResponsePaymentDto(p)));
+        });
+    }
+
+    @Transactional(readOnly = true)
+    public Flux<ResponsePaymentDto> getPaymentsBefore(String beforeRequestId, Integer size) {
+        int limit = Math.min(size != null && size > 0 ? size : paymentProperties.getDashboardPageSize(), paymentProperties.getDashboardMaxPageSize());
+        // the cursor is resolved with the same owner predicate as the page, so a foreign requestId is indistinguishable from a missing one
+        return currentCaller().flatMapMany(caller -> (caller.admin() ? paymentRepository.findByRequestId(beforeRequestId)
+                        : paymentRepository.findCursorVisibleTo(beforeRequestId, caller.username()))
+                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Not found payment for requestId: " + beforeRequestId)))
+                .flatMapMany(cursor -> caller.admin() ? paymentRepository.findPageBefore(cursor.getCreatedAt(), cursor.getId(), limit)
+                        : paymentRepository.findPageBeforeVisibleTo(caller.username(), cursor.getCreatedAt(), cursor.getId(), limit))
+                .map(ResponsePaymentDto::new));
+    }
+
+    // a stream only carries the payments its user sends or receives and is only opened for the caller itself
+    public Flux<PaymentChange> getPaymentChangesByUsername(String username) {
+        return paymentStreamRegistry.subscribe(username);
+    }
+
+    public Mono<List<PaymentChange>> replayPaymentChanges(String username, String lastEventId) {
+        if (lastEventId == null) {
+            return Mono.empty();
         }
-        return payments.mergeWith(getLastPaymentsModifiedByUsername(username));
+        return Mono.fromSupplier(() -> paymentChangeBuffer.replaySince(username, lastEventId))
+                .flatMap(Mono::justOrEmpty);
     }
 
     @Transactional(readOnly = true)
-    @PostFilter("hasAuthority('ADMIN') or filterObject.usernameFrom == @paymentService.getUsername(authentication)")
     public Mono<ResponsePaymentDto> findById(String requestId) {
-        return paymentRepository.findByRequestId(requestId)
+        return currentCaller()
+                .flatMap(caller -> caller.admin() ? paymentRepository.findByRequestId(requestId)
+                        : paymentRepository.findByRequestIdVisibleTo(requestId, caller.username()))
                 .map(ResponsePaymentDto::new);
     }
 
-    @Transactional
+    private Mono<Caller> currentCaller() {
+        return ReactiveSecurityContextHolder.getContext()
+                .map(SecurityContext::getAuthentication)
+                .switchIfEmpty(Mono.error(() -> new AuthenticationCredentialsNotFoundException("An Authentication object was not found in the SecurityContext")))
+                .map(authentication -> new Caller(getUsername(authentication), authentication.getAuthorities().stream()
+                        .anyMatch(a -> a.getAuthority().equals("ADMIN"))));
+    }
+
+    private record Caller(String username, boolean admin) {
+    }
+
+    // not @Transactional: a confirmed payment is completed in its account lane's own transaction,
+    // so no connection is held here while the transfer is queued
     public Mono<ResponsePaymentDto> processNotification(NotificationRequestDto notificationRequestDto) {
         Instant now = Instant.now();
         String requestId = notificationRequestDto.requestId();
@@ -135,22 +236,30 @@ public class PaymentService {
                 .flatMap(p -> {
                     if (isPaymentExpired(p.getCreatedAt(), now)) {
                         log.info("Payment expired: {}", p);
-                        p.setStatus(PaymentStatus.DECLINED);
-                        p.setMessage("\uD83D\uDE21 Payment expired!");
-                        return paymentRepository.save(p)
-                                .map(ResponsePaymentDto::new);
+                        return declinePayment(p, "\uD83D\uDE21 Payment expired!");
                     } else if (!notificationRequestDto.confirmed()) {
                         log.info("User has declined payment: {}", p);
-                        p.setStatus(PaymentStatus.DECLINED);
-                        p.setMessage("\uD83D\uDE21 User has declined payment!");
-                        return paymentRepository.save(p)
-                                .map(ResponsePaymentDto::new);
+                        return declinePayment(p, "\uD83D\uDE21 User has declined payment!");
                     }
+                    Instant waitingAt = p.getProcessedAt();
                     return completePayment(p)
-                            .doOnNext(resp -> log.info("Processed payment: {}", resp));
+                            .doOnNext(resp -> {
+                                log.info("Processed payment: {}", resp);
+                                if (resp.status() == PaymentStatus.COMPLETED) {
+                                    paymentPipelineMetrics.recordCompleted(waitingAt, resp.processedAt());
+                                }
+                            });
                 })
-                .flatMap(p -> redisOperations.delete(String.format("notificationKey_%s", notificationRequestDto.requestId()))
-                        .then(publishPaymentEvent(p)));
+                .flatMap(p -> removeNotification(new NotificationResponseDto(p.usernameFrom(), p.usernameTo(), requestId, p.total(), 0L))
+                        .thenReturn(p));
+    }
+
+    // conditional on the payment still being pending, so a decline racing a completion or another decline
+    // neither overwrites the final status nor publishes a change that did not happen
+    private Mono<ResponsePaymentDto> declinePayment(Payment payment, String message) {
+        return paymentRepository.declinePayment(PaymentStatus.DECLINED, message, Instant.now(), payment.getRequestId())
+                .flatMap(p -> publishPaymentEvent(new ResponsePaymentDto(p)))
+                .as(transactionalOperator::transactional);
     }
 
     public String getUsername(Authentication authentication) {
@@ -185,20 +294,44 @@ public class PaymentService {
 
     private Function<ResponsePaymentDto, Mono<? extends ResponsePaymentDto>> processKafkaMessage() {
         return resp -> Mono.defer(() -> {
-            executor.execute(() -> sendKafkaMessage(resp));
             log.info("paymentDto: {}", resp);
-            return publishPaymentEvent(resp);
+            return paymentOutboxRepository.save(newPaymentOutbox(resp))
+                    .then(publishPaymentEvent(resp));
         });
     }
 
+    private PaymentOutbox newPaymentOutbox(ResponsePaymentDto resp) {
+        PaymentOutbox outbox = new PaymentOutbox(resp);
+        Span span = tracer.currentSpan();
+        if (span != null) {
+            outbox.setTraceId(span.context().traceId());
+            outbox.setSpanId(span.context().spanId());
+        }
+        return outbox;
+    }
+
     private Mono<ResponsePaymentDto> publishNotificationEvent(ResponsePaymentDto resp) {
         NotificationResponseDto notification = new NotificationResponseDto(resp.usernameFrom(),
                 resp.usernameTo(),
                 resp.requestId(),
                 resp.total(),
                 (paymentProperties.getExpirePaymentInSecs() - Duration.between(resp.createdAt(), Instant.now()).toSeconds()));
-            return redisOperations.opsForValue().set(String.format("notificationKey_%s", notification.requestId()), notification, Duration.ofSeconds(notification.remainingTimeInSeconds()))
-                    .thenReturn(resp);
+        Duration expireIn = Duration.ofSeconds(notification.remainingTimeInSeconds());
+        String userKey = String.format(USER_NOTIFICATIONS_KEY, notification.usernameTo());
+        return redisOperations.opsForValue().set(String.format(NOTIFICATION_KEY, notification.requestId()), notification, expireIn)
+                .then(stringRedisOperations.opsForZSet().add(userKey, notification.requestId(), Instant.now().plus(expireIn).toEpochMilli()))
+                // the index lives as long as its latest deadline, so a shorter-lived notification never cuts it short
+                .then(stringRedisOperations.opsForZSet().reverseRangeWithScores(userKey, Range.closed(0L, 0L))
+                        .next()
+                        .flatMap(latest -> stringRedisOperations.expireAt(userKey, Instant.ofEpochMilli(latest.getScore().longValue()))))
+                .then(redisOperations.convertAndSend(String.format(NOTIFICATION_CHANNEL, notification.usernameTo()), notification))
+                .thenReturn(resp);
+    }
+
+    private Mono<Long> removeNotification(NotificationResponseDto notification) {
+        return redisOperations.delete(String.format(NOTIFICATION_KEY, notification.requestId()))
+                .then(stringRedisOperations.opsForZSet().remove(String.format(USER_NOTIFICATIONS_KEY, notification.usernameTo()), notification.requestId()))
+                .then(redisOperations.convertAndSend(String.format(NOTIFICATION_REMOVED_CHANNEL, notification.usernameTo()), notification));
     }
 
     private Mono<ResponsePaymentDto> publishPaymentEvent(ResponsePaymentDto resp) {
@@ -207,120 +340,123 @@ public class PaymentService {
                 .thenReturn(resp);
     }
 
-    private void sendKafkaMessage(ResponsePaymentDto responsePaymentDto) {
-        try {
-            com.example.schema.avro.Payment payment = new com.example.schema.avro.Payment();
-            payment.setRequestId(responsePaymentDto.requestId());
-            payment.setCreatedAt(Instant.now());
-            payment.setTotal(responsePaymentDto.total().setScale(2, RoundingMode.HALF_UP));
-            payment.setUsernameFrom(responsePaymentDto.usernameFrom());
-            payment.setUsernameFromAddress(responsePaymentDto.usernameFromAddress());
-            payment.setUsernameTo(responsePaymentDto.usernameTo());
-            payment.setUsernameToAddress(responsePaymentDto.usernameToAddress());
-            payment.setStatus(responsePaymentDto.status().name());
-            log.info("Sending kafka message: {}", responsePaymentDto);
-            kafkaTemplate.send(topic, payment);
-        } catch (Exception e) {
-            log.error("Failed to send kafka message", e);
-        }
-    }
-
-    private Mono<Tuple2<UserAuth, UserAuth>> convertToMonoZip(String usernameFrom, String usernameTo) {
+    private Mono<Tuple2<UserProfile, UserProfile>> convertToMonoZip(String usernameFrom, String usernameTo) {
         return Mono.zip(findByUser(usernameFrom), findByUser(usernameTo));
     }
 
-    private Mono<UserAuth> findByUser(String username) {
-        return userRepository.findById(username)
+    private Mono<UserProfile> findByUser(String username) {
+        return userCache.findById(username)
                 .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.BAD_GATEWAY, "Not found username: " + username)));
     }
 
     @Transactional
     public Mono<Void> declinePayment(String requestId, Instant processedAt) {
-        return paymentRepository.declinePayment(PaymentStatus.DECLINED, "\uD83D\uDE31 User declined", processedAt, requestId);
+        return paymentRepository.declinePayment(PaymentStatus.DECLINED, "\uD83D\uDE31 User declined", processedAt, requestId)
+                .flatMap(p -> publishPaymentEvent(new ResponsePaymentDto(p)))
+                .then();
     }
 
     @Transactional
     public Mono<ResponsePaymentDto> processPayment(UpdatePayment updatePayment) {
-        return paymentRepository.findByRequestId(updatePayment.getRequestId())
-                .switchIfEmpty(Mono.error(new IllegalStateException("Not found Payment for requestId: "+ updatePayment.getRequestId())))
-                .flatMap(payment -> {
-                    log.info("### -> Processing payment: {}", payment);
-                    log.info("### -> Processing updatePayment: {}", updatePayment);
-
-                    CheckStatus status = updatePayment.getStatus();
-                    boolean checkFailed = updatePayment.getCheckFailed();
-                    payment.setProcessedAt(Instant.now());
-                    if (checkFailed) {
-                        payment.setStatus(PaymentStatus.DECLINED);
-                        payment.setMessage(createReasonFailed(payment, updatePayment.getReasonFailed(), "\uD83D\uDC40"));
-                    }
-                    if (status == CheckStatus.SANCTION_CHECK) {
-                        payment.setSanctionCheckProcessed(true);
-                    } else if (status == CheckStatus.AUTH_CHECK) {
-                        payment.setAuthCheckProcessed(true);
-                    } else if (status == CheckStatus.USER_CONFIRMATION_CHECK) {
-                        payment.setUserConfirmationCheckProcessed(true);
-                    }
+        return applyUpdatePayment(updatePayment);
+    }
 
-                    if (isPaymentExpired(payment.getCreatedAt(), updatePayment.getUpdateAt())) {
-                        payment.setMessage("\uD83D\uDE21 Payment expired!");
-                        payment.setStatus(PaymentStatus.DECLINED);
-                    } else if (payment.isAllChecksProcessed() && !checkFailed) {
-                        payment.setStatus(PaymentStatus.WAITING_FOR_USER_CONFIRMATION);
-                    }
+    // returns how many leading updates were applied, the caller retries from the first one whose payment is missing
+    @Transactional
+    public Mono<Integer> processPayments(List<UpdatePayment> updatePayments, Function<UpdatePayment, Observation> observations) {
+        // the whole batch is one conditional statement that only sets flags still unset on payments still pending,
+        // so checks of one payment arriving in concurrent batches never overwrite each other's flags
+        return paymentRepository.applyChecks(updatePayments, "\uD83D\uDC40", "\uD83D\uDE21 Payment expired!",
+                        Duration.ofSeconds(paymentProperties.getExpirePaymentInSecs()), Instant.now())
+                .collectMap(Payment::getRequestId)
+                .flatMap(applied -> {
+                    Set<String> notApplied = new HashSet<>();
+                    updatePayments.stream().map(UpdatePayment::getRequestId).filter(id -> !applied.containsKey(id)).forEach(notApplied::add);
+                    // rows that did not come back are either missing or had nothing left to apply
+                    Mono<Set<String>> existing = (notApplied.isEmpty() ? Mono.just(Set.of())
+                            : paymentRepository.findExistingRequestIds(notApplied).collect(Collectors.toSet()));
+                    return existing.flatMap(found -> {
+                        int processed = 0;
+                        while (processed < updatePayments.size()) {
+                            String requestId = updatePayments.get(processed).getRequestId();
+                            if (!applied.containsKey(requestId) && !found.contains(requestId)) {
+                                log.warn("Not found Payment for requestId: {}", requestId);
+                                break;
+                            }
+                            processed++;
+                        }
+                        found.forEach(requestId -> log.info("### -> Ignoring repeated check or update for payment in final status: {}", requestId));
+                        recordChecks(updatePayments, applied, observations);
+                        log.info("### -> Processing updatePayments: size: {}, processed: {}", updatePayments.size(), processed);
+                        return Flux.fromIterable(applied.values())
+                                .concatMap(this::publishProcessedPayment)
+                                .then(Mono.just(processed));
+                    });
+                });
+    }
 
-                    return paymentRepository.save(payment);
-                })
+    // the batch listener is not observed per record, so each update records its latency in its own record's
+    // observation and carries that record's trace as an exemplar
+    private void recordChecks(List<UpdatePayment> updatePayments, Map<String, Payment> applied, Function<UpdatePayment, Observation> observations) {
+        Set<String> waiting = new HashSet<>();
+        for (UpdatePayment updatePayment : updatePayments) {
+            Payment payment = applied.get(updatePayment.getRequestId());
+            if (payment == null) {
+                continue;
+            }
+            observations.apply(updatePayment).observe(() -> {
+                paymentPipelineMetrics.recordCheck(updatePayment.getStatus(), payment.getCreatedAt(), updatePayment.getUpdateAt());
+                // a row only comes back when the batch flipped one of its flags, so WAITING here is the transition itself
+                if (payment.isAllChecksProcessed() && payment.getStatus() == PaymentStatus.WAITING_FOR_USER_CONFIRMATION
+                        && waiting.add(payment.getRequestId())) {
+                    paymentPipelineMetrics.recordWaitingForUserConfirmation(payment.getCreatedAt(), payment.getProcessedAt());
+                }
+            });
+        }
+    }
+
+    private Mono<ResponsePaymentDto> applyUpdatePayment(UpdatePayment updatePayment) {
+        log.info("### -> Processing updatePayment: {}", updatePayment);
+        String requestId = updatePayment.getRequestId();
+        String reasonFailed = String.valueOf(updatePayment.getReasonFailed());
+        return paymentRepository.applyCheck(requestId, updatePayment.getStatus(), updatePayment.getCheckFailed(),
+                        reasonFailed, "\uD83D\uDC40", "\uD83D\uDE21 Payment expired!",
+                        updatePayment.getUpdateAt().minusSeconds(paymentProperties.getExpirePaymentInSecs()), Instant.now())
+                .switchIfEmpty(paymentRepository.findByRequestId(requestId)
+                        .flatMap(p -> {
+                            log.info("### -> Ignoring repeated check or update for payment in final status: {}", p);
+                            return Mono.<Payment>empty();
+                        })
+                        .switchIfEmpty(Mono.error(new PaymentNotFoundException(requestId))))
                 .flatMap(payment -> {
-                    if (payment.isAllChecksProcessed() && payment.getStatus() != PaymentStatus.DECLINED) {
-                        return publishNotificationEvent(new ResponsePaymentDto(payment))
-                                .flatMap(this::publishPaymentEvent);
+                    log.info("### -> Processed payment: {}", payment);
+                    paymentPipelineMetrics.recordCheck(updatePayment.getStatus(), payment.getCreatedAt(), updatePayment.getUpdateAt());
+                    // a row only comes back when this check flipped its flag, so WAITING here is the transition itself
+                    if (payment.isAllChecksProcessed() && payment.getStatus() == PaymentStatus.WAITING_FOR_USER_CONFIRMATION) {
+                        paymentPipelineMetrics.recordWaitingForUserConfirmation(payment.getCreatedAt(), payment.getProcessedAt());
                     }
-
-                    return publishPaymentEvent(new ResponsePaymentDto(payment));
+                    return publishProcessedPayment(payment);
                 });
+    }
+
+    private Mono<ResponsePaymentDto> publishProcessedPayment(Payment payment) {
+        if (payment.isAllChecksProcessed() && payment.getStatus() != PaymentStatus.DECLINED) {
+            return publishNotificationEvent(new ResponsePaymentDto(payment))
+                    .flatMap(this::publishPaymentEvent);
+        }
 
+        return publishPaymentEvent(new ResponsePaymentDto(payment));
     }
 
     private boolean isPaymentExpired(Instant startTime, Instant endTime) {
         return Duration.between(startTime, endTime).toSeconds() > paymentProperties.getExpirePaymentInSecs();
     }
 
-    private static String createReasonFailed(Payment payment, String msg, String emoji) {
-        String message = (payment.getMessage() != null ? payment.getMessage() + ";" : "") + msg;
-        if (message.codePoints().noneMatch(Character::isEmoji)) {
-            return emoji + " " + message;
-        }
-        return message;
-    }
-
     private Mono<ResponsePaymentDto> completePayment(Payment payment) {
         if (!payment.isAllChecksProcessed() || payment.getStatus() != PaymentStatus.WAITING_FOR_USER_CONFIRMATION) {
             return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Payment has invalid details"));
         }
-        return convertToMonoZip(payment.getUsernameFrom(), payment.getUsernameTo())
-                .flatMap(t -> {
-                    UserAuth usernameFrom = t.getT1();
-                    UserAuth usernameTo = t.getT2();
-                    BigDecimal total = payment.getTotal();
-                    if (total.doubleValue() > usernameFrom.getBalance().doubleValue()) {
-                        String reason = createReasonFailed(payment, "User has not sufficient resources", "\uD83D\uDE21");
-                        payment.setStatus(PaymentStatus.INSUFFICIENT_RESOURCES);
-                        payment.setMessage(reason);
-                        payment.setProcessedAt(Instant.now());
-                        return paymentRepository.save(payment)
-                                .flatMap(p -> publishPaymentEvent(new ResponsePaymentDto(p)));
-                    } else {
-                        usernameFrom.updateBalance(usernameTo, total);
-                        return userRepository.saveAll(Arrays.asList(usernameFrom, usernameTo))
-                                .flatMap(p -> {
-                                    payment.setStatus(PaymentStatus.COMPLETED);
-                                    payment.setMessage("\uD83E\uDD11 Payment successful");
-                                    payment.setProcessedAt(Instant.now());
-                                    return paymentRepository.save(payment);
-                                }).last()
-                                .flatMap(p -> publishPaymentEvent(new ResponsePaymentDto(p, total)));
-                    }
-                });
+        return accountTransferLanes.transfer(payment)
+                .map(p -> p.getStatus() == PaymentStatus.COMPLETED ? new ResponsePaymentDto(p, p.getTotal()) : new ResponsePaymentDto(p));
     }
 }
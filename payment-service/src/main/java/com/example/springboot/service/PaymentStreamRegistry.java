@@ -0,0 +1,71 @@
+package com.example.springboot.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.util.concurrent.Queues;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Component
+public class PaymentStreamRegistry {
+    private static final Logger log = LoggerFactory.getLogger(PaymentStreamRegistry.class);
+
+    private final Map<String, UserSink> sinks = new ConcurrentHashMap<>();
+
+    public Flux<PaymentChange> subscribe(String username) {
+        return Flux.defer(() -> {
+            UserSink userSink = sinks.compute(username, (k, v) -> {
+                UserSink s = (v != null ? v : new UserSink());
+                s.subscribers++;
+                return s;
+            });
+            return userSink.sink.asFlux()
+                    .doFinally(signal -> release(username, userSink));
+        });
+    }
+
+    public boolean isConnected(String username) {
+        return sinks.containsKey(username);
+    }
+
+    public boolean emit(String username, PaymentChange change) {
+        UserSink userSink = sinks.get(username);
+        if (userSink == null) {
+            return false;
+        }
+        synchronized (userSink) {
+            Sinks.EmitResult result = userSink.sink.tryEmitNext(change);
+            if (result.isFailure()) {
+                log.warn("Failed to push payment to user({}): {}", username, result);
+            }
+            return result.isSuccess();
+        }
+    }
+
+    public int getConnectedUsers() {
+        return sinks.size();
+    }
+
+    private void release(String username, UserSink userSink) {
+        sinks.computeIfPresent(username, (k, v) -> {
+            if (v != userSink) {
+                return v;
+            }
+            v.subscribers--;
+            if (v.subscribers > 0) {
+                return v;
+            }
+            v.sink.tryEmitComplete();
+            return null;
+        });
+    }
+
+    private static class UserSink {
+        private final Sinks.Many<PaymentChange> sink = Sinks.many().multicast().onBackpressureBuffer(Queues.SMALL_BUFFER_SIZE, false);
+        private int subscribers;
+    }
+}
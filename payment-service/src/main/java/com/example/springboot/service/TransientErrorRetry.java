@@ -0,0 +1,61 @@
+package com.example.springboot.service;
+
+import com.example.springboot.config.PaymentProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.r2dbc.spi.R2dbcTransientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Component;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+
+@Component
+public class TransientErrorRetry {
+    private static final Logger log = LoggerFactory.getLogger(TransientErrorRetry.class);
+
+    private final PaymentProperties paymentProperties;
+    private final MeterRegistry meterRegistry;
+
+    public TransientErrorRetry(PaymentProperties paymentProperties, MeterRegistry meterRegistry) {
+        this.paymentProperties = paymentProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    public boolean isTransient(Throwable e) {
+        return e instanceof PaymentNotFoundException
+                || e instanceof TransientDataAccessException
+                || e instanceof DataAccessResourceFailureException
+                || e instanceof R2dbcTransientException
+                || e instanceof TimeoutException;
+    }
+
+    public Retry retrySpec() {
+        return Retry.backoff(paymentProperties.getUpdateRetryMaxAttempts(), Duration.ofMillis(paymentProperties.getUpdateRetryMinBackoffInMillis()))
+                .maxBackoff(Duration.ofMillis(paymentProperties.getUpdateRetryMaxBackoffInMillis()))
+                .jitter(paymentProperties.getUpdateRetryJitter())
+                .filter(e -> {
+                    boolean retryable = isTransient(e);
+                    if (!retryable) {
+                        count(e, "rejected");
+                    }
+                    return retryable;
+                })
+                .doBeforeRetry(signal -> {
+                    log.debug("Retrying update after {}: attempt: {}", signal.failure().toString(), signal.totalRetries() + 1);
+                    count(signal.failure(), "retried");
+                })
+                .onRetryExhaustedThrow((spec, signal) -> {
+                    count(signal.failure(), "exhausted");
+                    return signal.failure();
+                });
+    }
+
+    private void count(Throwable e, String outcome) {
+        meterRegistry.counter("payment.update.retries", "exception", e.getClass().getSimpleName(), "outcome", outcome)
+                .increment();
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.springboot.service;
+
+import com.example.schema.avro.UpdatePayment;
+import com.example.springboot.config.PaymentProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+
+@Component
+public class UpdatePaymentDeduplicator {
+    private static final Logger log = LoggerFactory.getLogger(UpdatePaymentDeduplicator.class);
+    private static final String PROCESSED_KEY = "processedUpdatePayment_%s";
+
+    private final Cache<String, Boolean> processed;
+    private final ReactiveStringRedisTemplate stringRedisOperations;
+    private final PaymentProperties paymentProperties;
+    private final Counter hits;
+    private final Counter misses;
+
+    public UpdatePaymentDeduplicator(ReactiveStringRedisTemplate stringRedisOperations, PaymentProperties paymentProperties, MeterRegistry meterRegistry) {
+        this.stringRedisOperations = stringRedisOperations;
+        this.paymentProperties = paymentProperties;
+        this.processed = Caffeine.newBuilder()
+                .maximumSize(paymentProperties.getUpdateDedupeMaxSize())
+                .expireAfterWrite(Duration.ofSeconds(paymentProperties.getUpdateDedupeTtlInSecs()))
+                .build();
+        this.hits = dedupeCounter(meterRegistry, "hit");
+        this.misses = dedupeCounter(meterRegistry, "miss");
+        Gauge.builder("payment.update.dedupe.hit.ratio", this, d -> {
+                    double total = d.hits.count() + d.misses.count();
+                    return total == 0 ? 0 : d.hits.count() / total;
+                })
+                .description("Share of update-payment-topic records skipped as duplicates")
+                .register(meterRegistry);
+    }
+
+    public static String key(UpdatePayment updatePayment) {
+        return updatePayment.getRequestId() + ":" + updatePayment.getStatus() + ":" + updatePayment.getUpdateAt().toEpochMilli();
+    }
+
+    public Mono<Boolean> isProcessed(UpdatePayment updatePayment) {
+        return findProcessed(List.of(updatePayment))
+                .map(keys -> !keys.isEmpty());
+    }
+
+    public Mono<Set<String>> findProcessed(Collection<UpdatePayment> updatePayments) {
+        List<String> keys = updatePayments.stream().map(UpdatePaymentDeduplicator::key).toList();
+        Set<String> found = new HashSet<>(processed.getAllPresent(keys).keySet());
+        List<String> remaining = keys.stream().filter(k -> !found.contains(k)).distinct().toList();
+        Mono<Set<String>> result = Mono.just(found);
+        if (paymentProperties.isUpdateDedupeRedisEnabled() && !remaining.isEmpty()) {
+            result = stringRedisOperations.opsForValue().multiGet(remaining.stream().map(k -> String.format(PROCESSED_KEY, k)).toList())
+                    .map(values -> {
+                        for (int i = 0; i < remaining.size(); i++) {
+                            if (values.get(i) != null) {
+                                found.add(remaining.get(i));
+                                processed.put(remaining.get(i), Boolean.TRUE);
+                            }
+                        }
+                        return found;
+                    })
+                    .onErrorResume(e -> {
+                        log.warn("Failed to read processed updates from redis", e);
+                        return Mono.just(found);
+                    });
+        }
+        return result.doOnNext(f -> {
+            // a key repeated within the same call is a duplicate too, even when it was never processed before
+            Set<String> checked = new HashSet<>();
+            long duplicates = keys.stream().filter(k -> !checked.add(k) || f.contains(k)).count();
+            hits.increment(duplicates);
+            misses.increment(keys.size() - duplicates);
+        });
+    }
+
+    public Mono<Void> markProcessed(Collection<UpdatePayment> updatePayments) {
+        Set<String> keys = updatePayments.stream().map(UpdatePaymentDeduplicator::key).collect(Collectors.toSet());
+        keys.forEach(k -> processed.put(k, Boolean.TRUE));
+        if (!paymentProperties.isUpdateDedupeRedisEnabled() || keys.isEmpty()) {
+            return Mono.empty();
+        }
+        Duration ttl = Duration.ofSeconds(paymentProperties.getUpdateDedupeTtlInSecs());
+        return Flux.fromIterable(keys)
+                .flatMap(k -> stringRedisOperations.opsForValue().set(String.format(PROCESSED_KEY, k), "1", ttl))
+                .onErrorResume(e -> {
+                    log.warn("Failed to write processed updates to redis", e);
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private static Counter dedupeCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("payment.update.dedupe")
+                .description("update-payment-topic records checked against already processed updates")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.springboot.service;
+
+import com.example.springboot.config.PaymentProperties;
+import com.example.springboot.model.UserProfile;
+import com.example.springboot.repository.UserRepository;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+@Component
+public class UserCache {
+    private final AsyncCache<String, UserProfile> users;
+    private final UserRepository userRepository;
+    private final Timer loadTimer;
+
+    public UserCache(UserRepository userRepository, PaymentProperties paymentProperties, MeterRegistry meterRegistry) {
+        this.userRepository = userRepository;
+        this.users = Caffeine.newBuilder()
+                .maximumSize(paymentProperties.getUserCacheMaxSize())
+                .expireAfterWrite(Duration.ofSeconds(paymentProperties.getUserCacheTtlInSecs()))
+                .recordStats()
+                .buildAsync();
+        this.loadTimer = Timer.builder("payment.user.cache.load")
+                .description("Time to load a user from the database on a cache miss")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        Gauge.builder("payment.user.cache.hit.ratio", users, u -> u.synchronous().stats().hitRate())
+                .description("Share of user lookups served from the cache")
+                .register(meterRegistry);
+        Gauge.builder("payment.user.cache.size", users, u -> u.synchronous().estimatedSize())
+                .description("Users held in the cache")
+                .register(meterRegistry);
+    }
+
+    // only the profile fields that never change after registration are cached, balances are always read from the
+    // database, so there is nothing to invalidate when a transfer commits on this or any other instance.
+    // An unknown username completes the load with null, which Caffeine does not keep
+    public Mono<UserProfile> findById(String username) {
+        return Mono.fromFuture(() -> users.get(username, (key, executor) -> {
+            Timer.Sample sample = Timer.start();
+            return userRepository.findById(key)
+                    .map(UserProfile::new)
+                    .doFinally(signal -> sample.stop(loadTimer))
+                    .toFuture();
+        }), true);
+    }
+}
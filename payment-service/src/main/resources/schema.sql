@@ -28,4 +28,55 @@ create table if not exists payment
     CONSTRAINT idx_request_id UNIQUE(request_id),
     CONSTRAINT fk_username_from FOREIGN KEY (username_from) REFERENCES user_auth (username),
     CONSTRAINT fk_username_to FOREIGN KEY (username_to) REFERENCES user_auth (username)
-);
\ No newline at end of file
+);
+
+create index if not exists idx_payment_created_at on payment (created_at, id);
+create index if not exists idx_payment_username_from_created_at on payment (username_from, created_at, id);
+create index if not exists idx_payment_username_to_created_at on payment (username_to, created_at, id);
+create index if not exists idx_payment_status_created_at on payment (status, created_at);
+
+create table if not exists payment_outbox
+(
+    id                    serial primary key,
+    request_id            varchar(255) not null,
+    total                 numeric(38, 2) not null,
+    status                varchar(255) not null,
+    username_from         varchar(255) not null,
+    username_from_address varchar(255),
+    username_to           varchar(255) not null,
+    username_to_address   varchar(255),
+    created_at            timestamp(6) with time zone not null,
+    sent_at               timestamp(6) with time zone,
+    trace_id              varchar(64),
+    span_id               varchar(32),
+    attempts              integer not null default 0,
+    claimed_until         timestamp(6) with time zone,
+    dead_lettered_at      timestamp(6) with time zone
+);
+
+create index if not exists idx_payment_outbox_sent_at on payment_outbox (sent_at, id);
+
+create table if not exists ledger_entry
+(
+    id         serial primary key,
+    username   varchar(255) not null,
+    request_id varchar(255) not null,
+    amount     numeric(38, 2) not null,
+    created_at timestamp(6) with time zone not null,
+    compacted  boolean not null default false,
+    CONSTRAINT fk_ledger_entry_username FOREIGN KEY (username) REFERENCES user_auth (username)
+);
+
+create index if not exists idx_ledger_entry_compacted_username on ledger_entry (compacted, username);
+
+create table if not exists balance_snapshot
+(
+    id            serial primary key,
+    username      varchar(255) not null,
+    balance       numeric(38, 2) not null,
+    last_entry_id bigint not null,
+    created_at    timestamp(6) with time zone not null,
+    CONSTRAINT fk_balance_snapshot_username FOREIGN KEY (username) REFERENCES user_auth (username)
+);
+
+create index if not exists idx_balance_snapshot_username_id on balance_snapshot (username, id);
@@ -3,14 +3,22 @@ package com.example.springboot;
 import com.example.schema.avro.CheckStatus;
 import com.example.schema.avro.UpdatePayment;
 import com.example.springboot.model.*;
+import com.example.springboot.repository.BalanceSnapshotRepository;
+import com.example.springboot.repository.LedgerEntryRepository;
 import com.example.springboot.repository.PaymentRepository;
 import com.example.springboot.repository.UserRepository;
+import com.example.springboot.service.LedgerCompactor;
+import com.example.springboot.service.PaymentChange;
+import com.example.springboot.service.PaymentChangeBuffer;
 import com.example.springboot.service.PaymentService;
+import com.example.springboot.service.UpdatePaymentDeduplicator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import io.confluent.kafka.schemaregistry.client.rest.entities.SchemaString;
 import io.confluent.kafka.serializers.KafkaAvroDeserializer;
 import io.confluent.kafka.serializers.KafkaAvroSerializer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import org.apache.kafka.clients.consumer.Consumer;
@@ -37,14 +45,19 @@ import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWeb
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.cloud.contract.wiremock.AutoConfigureWireMock;
+import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseCookie;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaProducerFactory;
 import org.springframework.kafka.test.EmbeddedKafkaBroker;
 import org.springframework.kafka.test.context.EmbeddedKafka;
 import org.springframework.kafka.test.utils.KafkaTestUtils;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.ReactiveSecurityContextHolder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.annotation.DirtiesContext;
@@ -52,6 +65,7 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import org.springframework.util.MultiValueMap;
 import org.springframework.util.MultiValueMapAdapter;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.test.StepVerifier;
 import redis.embedded.RedisServer;
@@ -68,6 +82,7 @@ import java.util.stream.StreamSupport;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.awaitility.Awaitility.await;
 import static org.hamcrest.Matchers.containsString;
 import static org.springframework.security.test.web.reactive.server.SecurityMockServerConfigurers.csrf;
@@ -96,6 +111,18 @@ class PaymentApplicationTests {
     @Autowired
     UserRepository userRepository;
 
+    @Autowired
+    LedgerEntryRepository ledgerEntryRepository;
+
+    @Autowired
+    BalanceSnapshotRepository balanceSnapshotRepository;
+
+    @Autowired
+    LedgerCompactor ledgerCompactor;
+
+    @Autowired
+    PaymentChangeBuffer paymentChangeBuffer;
+
     @Autowired
     ObjectMapper objectMapper;
 
@@ -108,6 +135,12 @@ class PaymentApplicationTests {
     @Autowired
     KafkaProperties kafkaProperties;
 
+    @Autowired
+    UpdatePaymentDeduplicator updatePaymentDeduplicator;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
     Producer<String, UpdatePayment> producer;
 
     Consumer<String, com.example.schema.avro.Payment> consumer;
@@ -214,6 +247,12 @@ class PaymentApplicationTests {
         StepVerifier.create(paymentRepository.deleteAll())
                 .expectNextCount(0)
                 .verifyComplete();
+        StepVerifier.create(ledgerEntryRepository.deleteAll())
+                .expectNextCount(0)
+                .verifyComplete();
+        StepVerifier.create(balanceSnapshotRepository.deleteAll())
+                .expectNextCount(0)
+                .verifyComplete();
         StepVerifier.create(userRepository.deleteAll())
                 .expectNextCount(0)
                 .verifyComplete();
@@ -714,6 +753,109 @@ class PaymentApplicationTests {
                 .verify();
     }
 
+    @Test
+    @WithMockUser(username = "user")
+    void shouldPushPaymentChangesToDashboard() {
+        final String requestId = UUID.randomUUID().toString();
+        Flux<ResponsePaymentDto> payments = client.mutate().responseTimeout(Duration.ofSeconds(6)).build()
+                .get().uri("/api/v1/dashboard/payments")
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(ResponsePaymentDto.class)
+                .getResponseBody();
+
+        StepVerifier.create(payments.filter(p -> p.requestId().equals(requestId)))
+                .then(() -> client.mutateWith(csrf()).post().uri("/api/v1/payments")
+                        .header("requestId", requestId)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .body(fromValue(String.format("{\"requestId\":\"%s\",\"total\":\"10.05\",\"usernameTo\":\"admin\"}", requestId)))
+                        .exchange()
+                        .expectStatus().isCreated())
+                .assertNext(resp -> {
+                    assertThat(resp.usernameFrom()).isEqualTo("user");
+                    assertThat(resp.status()).isEqualTo(PaymentStatus.PROCESSING);
+                })
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    @WithMockUser(username = "user")
+    void shouldReplayMissedPaymentChangesWithLastEventId() {
+        ServerSentEvent<ResponsePaymentDto> lastEvent = client.mutate().responseTimeout(Duration.ofSeconds(6)).build()
+                .get().uri("/api/v1/dashboard/payments")
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(new ParameterizedTypeReference<ServerSentEvent<ResponsePaymentDto>>() {})
+                .getResponseBody()
+                .filter(e -> e.id() != null)
+                .blockFirst(Duration.ofSeconds(5));
+        assertThat(lastEvent).isNotNull();
+        assertThat(lastEvent.id()).isNotBlank();
+
+        final String requestId = UUID.randomUUID().toString();
+        client.mutateWith(csrf()).post().uri("/api/v1/payments")
+                .header("requestId", requestId)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(fromValue(String.format("{\"requestId\":\"%s\",\"total\":\"10.05\",\"usernameTo\":\"admin\"}", requestId)))
+                .exchange()
+                .expectStatus().isCreated();
+
+        Flux<ResponsePaymentDto> payments = client.mutate().responseTimeout(Duration.ofSeconds(6)).build()
+                .get().uri("/api/v1/dashboard/payments")
+                .header("Last-Event-ID", lastEvent.id())
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(ResponsePaymentDto.class)
+                .getResponseBody();
+
+        StepVerifier.create(payments)
+                .assertNext(resp -> assertThat(resp.requestId()).isEqualTo(requestId))
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void shouldTreatLastEventIdOfAnotherInstanceAsGap() {
+        PaymentChange change = paymentChangeBuffer.add("user", new ResponsePaymentDto(waitingPayment("user", "admin", "1.00")));
+
+        assertThat(paymentChangeBuffer.replaySince("user", change.eventId())).hasValue(List.of());
+        assertThat(paymentChangeBuffer.replaySince("user", UUID.randomUUID() + "-" + change.sequence())).isEmpty();
+        assertThat(paymentChangeBuffer.replaySince("user", String.valueOf(change.sequence()))).isEmpty();
+    }
+
+    @Test
+    @WithMockUser(username = "user")
+    void shouldReturnOlderPaymentsBeforeCursor() {
+        final String olderRequestId = UUID.randomUUID().toString();
+        final String newerRequestId = UUID.randomUUID().toString();
+        for (String requestId : Arrays.asList(olderRequestId, newerRequestId)) {
+            client.mutateWith(csrf()).post().uri("/api/v1/payments")
+                    .header("requestId", requestId)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(fromValue(String.format("{\"requestId\":\"%s\",\"total\":\"10.05\",\"usernameTo\":\"admin\"}", requestId)))
+                    .exchange()
+                    .expectStatus().isCreated();
+        }
+
+        client.get().uri("/api/v1/dashboard/payments/history?before=" + newerRequestId + "&size=10")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBodyList(ResponsePaymentDto.class)
+                .value(payments -> {
+                    assertThat(payments).extracting(ResponsePaymentDto::requestId).contains(olderRequestId).doesNotContain(newerRequestId);
+                    assertThat(payments).allMatch(p -> p.usernameFrom().equals("user") || p.usernameTo().equals("user"));
+                });
+
+        client.get().uri("/api/v1/dashboard/payments/history?before=" + UUID.randomUUID())
+                .exchange()
+                .expectStatus().isNotFound();
+
+        client.mutateWith(mockUser("dummy")).get().uri("/api/v1/dashboard/payments/history?before=" + newerRequestId)
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
     @Test
     @Disabled
     @WithMockUser(username = "dummy")
@@ -766,6 +908,273 @@ class PaymentApplicationTests {
                         .jsonPath("$.status").isEqualTo(PaymentStatus.DECLINED.name()));
     }
 
+    @Test
+    void shouldApplyEachCheckOnlyToPendingPayment() {
+        RequestPaymentDto requestPaymentDto = new RequestPaymentDto(UUID.randomUUID().toString(), new BigDecimal("10.50"), "admin", Instant.now());
+        RequestPaymentDto declinedPaymentDto = new RequestPaymentDto(UUID.randomUUID().toString(), new BigDecimal("10.50"), "admin", Instant.now());
+        paymentRepository.saveAll(List.of(new Payment(null, requestPaymentDto, "user"), new Payment(null, declinedPaymentDto, "user")))
+                .blockLast();
+        Instant expiredBefore = Instant.now().minusSeconds(120);
+
+        StepVerifier.create(paymentRepository.applyCheck(requestPaymentDto.requestId(), CheckStatus.SANCTION_CHECK, false, "null", "\uD83D\uDC40", "expired", expiredBefore, Instant.now()))
+                .assertNext(p -> {
+                    assertThat(p.isSanctionCheckProcessed()).isTrue();
+                    assertThat(p.isAuthCheckProcessed()).isFalse();
+                    assertThat(p.getStatus()).isEqualTo(PaymentStatus.PROCESSING);
+                })
+                .verifyComplete();
+        StepVerifier.create(paymentRepository.applyCheck(requestPaymentDto.requestId(), CheckStatus.AUTH_CHECK, false, "null", "\uD83D\uDC40", "expired", expiredBefore, Instant.now()))
+                .assertNext(p -> {
+                    assertThat(p.isSanctionCheckProcessed()).isTrue();
+                    assertThat(p.isAuthCheckProcessed()).isTrue();
+                    assertThat(p.getStatus()).isEqualTo(PaymentStatus.PROCESSING);
+                })
+                .verifyComplete();
+        StepVerifier.create(paymentRepository.applyCheck(requestPaymentDto.requestId(), CheckStatus.USER_CONFIRMATION_CHECK, false, "null", "\uD83D\uDC40", "expired", expiredBefore, Instant.now()))
+                .assertNext(p -> {
+                    assertThat(p.isAllChecksProcessed()).isTrue();
+                    assertThat(p.getStatus()).isEqualTo(PaymentStatus.WAITING_FOR_USER_CONFIRMATION);
+                })
+                .verifyComplete();
+        // a repeated check is a no-op, so only the update that completed the checks reports the transition to WAITING
+        StepVerifier.create(paymentRepository.applyCheck(requestPaymentDto.requestId(), CheckStatus.SANCTION_CHECK, false, "null", "\uD83D\uDC40", "expired", expiredBefore, Instant.now()))
+                .verifyComplete();
+
+        StepVerifier.create(paymentRepository.applyCheck(declinedPaymentDto.requestId(), CheckStatus.SANCTION_CHECK, true, "Sanctioned", "\uD83D\uDC40", "expired", expiredBefore, Instant.now()))
+                .assertNext(p -> {
+                    assertThat(p.getStatus()).isEqualTo(PaymentStatus.DECLINED);
+                    assertThat(p.getMessage()).isEqualTo("\uD83D\uDC40 Sanctioned");
+                })
+                .verifyComplete();
+        StepVerifier.create(paymentRepository.applyCheck(declinedPaymentDto.requestId(), CheckStatus.AUTH_CHECK, false, "null", "\uD83D\uDC40", "expired", expiredBefore, Instant.now()))
+                .verifyComplete();
+        StepVerifier.create(paymentRepository.findByRequestId(declinedPaymentDto.requestId()))
+                .assertNext(p -> {
+                    assertThat(p.isAuthCheckProcessed()).isFalse();
+                    assertThat(p.getStatus()).isEqualTo(PaymentStatus.DECLINED);
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void shouldApplyBatchOfChecksInOneStatement() {
+        RequestPaymentDto requestPaymentDto = new RequestPaymentDto(UUID.randomUUID().toString(), new BigDecimal("10.50"), "admin", Instant.now());
+        RequestPaymentDto declinedPaymentDto = new RequestPaymentDto(UUID.randomUUID().toString(), new BigDecimal("10.50"), "admin", Instant.now());
+        paymentRepository.saveAll(List.of(new Payment(null, requestPaymentDto, "user"), new Payment(null, declinedPaymentDto, "user")))
+                .blockLast();
+        Instant updateAt = Instant.now();
+        List<UpdatePayment> batch = List.of(
+                new UpdatePayment(requestPaymentDto.requestId(), updateAt, null, CheckStatus.SANCTION_CHECK, false),
+                new UpdatePayment(declinedPaymentDto.requestId(), updateAt, "Sanctioned", CheckStatus.SANCTION_CHECK, true),
+                new UpdatePayment(requestPaymentDto.requestId(), updateAt, null, CheckStatus.AUTH_CHECK, false),
+                new UpdatePayment(UUID.randomUUID().toString(), updateAt, null, CheckStatus.AUTH_CHECK, false));
+
+        StepVerifier.create(paymentRepository.applyChecks(batch, "\uD83D\uDC40", "expired", Duration.ofSeconds(120), Instant.now())
+                        .collectMap(Payment::getRequestId))
+                .assertNext(applied -> {
+                    assertThat(applied).containsOnlyKeys(requestPaymentDto.requestId(), declinedPaymentDto.requestId());
+                    Payment payment = applied.get(requestPaymentDto.requestId());
+                    assertThat(payment.isSanctionCheckProcessed()).isTrue();
+                    assertThat(payment.isAuthCheckProcessed()).isTrue();
+                    assertThat(payment.isUserConfirmationCheckProcessed()).isFalse();
+                    assertThat(payment.getStatus()).isEqualTo(PaymentStatus.PROCESSING);
+                    Payment declined = applied.get(declinedPaymentDto.requestId());
+                    assertThat(declined.getStatus()).isEqualTo(PaymentStatus.DECLINED);
+                    assertThat(declined.getMessage()).isEqualTo("\uD83D\uDC40 Sanctioned");
+                })
+                .verifyComplete();
+
+        // repeated checks and checks of declined payments are no-ops, the last check of a batch completes the checks
+        List<UpdatePayment> next = List.of(
+                new UpdatePayment(requestPaymentDto.requestId(), updateAt, null, CheckStatus.SANCTION_CHECK, false),
+                new UpdatePayment(declinedPaymentDto.requestId(), updateAt, null, CheckStatus.AUTH_CHECK, false),
+                new UpdatePayment(requestPaymentDto.requestId(), updateAt, null, CheckStatus.USER_CONFIRMATION_CHECK, false));
+        StepVerifier.create(paymentRepository.applyChecks(next, "\uD83D\uDC40", "expired", Duration.ofSeconds(120), Instant.now()))
+                .assertNext(p -> {
+                    assertThat(p.getRequestId()).isEqualTo(requestPaymentDto.requestId());
+                    assertThat(p.isAllChecksProcessed()).isTrue();
+                    assertThat(p.getStatus()).isEqualTo(PaymentStatus.WAITING_FOR_USER_CONFIRMATION);
+                })
+                .verifyComplete();
+        StepVerifier.create(paymentRepository.applyChecks(next, "\uD83D\uDC40", "expired", Duration.ofSeconds(120), Instant.now()))
+                .verifyComplete();
+
+        StepVerifier.create(paymentService.processPayments(batch, u -> Observation.NOOP))
+                .expectNext(3)
+                .verifyComplete();
+    }
+
+    @Test
+    void shouldAppendFailedCheckReasonLikeCreateReasonFailed() {
+        RequestPaymentDto plainDto = new RequestPaymentDto(UUID.randomUUID().toString(), new BigDecimal("10.50"), "admin", Instant.now());
+        RequestPaymentDto emojiDto = new RequestPaymentDto(UUID.randomUUID().toString(), new BigDecimal("10.50"), "admin", Instant.now());
+        Payment plain = new Payment(null, plainDto, "user");
+        plain.setMessage("Previous");
+        Payment emoji = new Payment(null, emojiDto, "user");
+        emoji.setMessage("\uD83D\uDE4F Previous");
+        paymentRepository.saveAll(List.of(plain, emoji)).blockLast();
+        Instant expiredBefore = Instant.now().minusSeconds(120);
+
+        // the emoji is only prefixed when neither the current message nor the reason carries one
+        StepVerifier.create(paymentRepository.applyCheck(plainDto.requestId(), CheckStatus.SANCTION_CHECK, true, "Sanctioned", "\uD83D\uDC40", "expired", expiredBefore, Instant.now()))
+                .assertNext(p -> assertThat(p.getMessage()).isEqualTo("\uD83D\uDC40 Previous;Sanctioned"))
+                .verifyComplete();
+        StepVerifier.create(paymentRepository.applyCheck(emojiDto.requestId(), CheckStatus.SANCTION_CHECK, true, "Sanctioned", "\uD83D\uDC40", "expired", expiredBefore, Instant.now()))
+                .assertNext(p -> assertThat(p.getMessage()).isEqualTo("\uD83D\uDE4F Previous;Sanctioned"))
+                .verifyComplete();
+    }
+
+    @Test
+    void shouldAppendTransfersToLedgerAndCompactThemIntoSnapshot() {
+        BigDecimal adminBalance = userRepository.findBalance("admin").block();
+        double drift = meterRegistry.get("payment.ledger.drift").counter().count();
+        Payment first = waitingPayment("user", "admin", "10.05");
+        Payment second = waitingPayment("user", "admin", "20.00");
+
+        StepVerifier.create(paymentRepository.completeTransfers(List.of(first), "completed", "insufficient", "\uD83D\uDE21", Instant.now()))
+                .assertNext(p -> assertThat(p.getStatus()).isEqualTo(PaymentStatus.COMPLETED))
+                .verifyComplete();
+        StepVerifier.create(ledgerEntryRepository.findAll().filter(e -> e.getRequestId().equals(first.getRequestId())).collectList())
+                .assertNext(entries -> assertThat(entries)
+                        .extracting(LedgerEntry::getUsername, e -> e.getAmount().toPlainString(), LedgerEntry::isCompacted)
+                        .containsExactlyInAnyOrder(tuple("user", "-10.05", false), tuple("admin", "10.05", false)))
+                .verifyComplete();
+        // the account balance is maintained with the transfer itself, the ledger is only its audit trail
+        StepVerifier.create(userRepository.findById("user"))
+                .assertNext(user -> assertThat(user.getBalance()).isEqualByComparingTo("90.05"))
+                .verifyComplete();
+
+        StepVerifier.create(ledgerCompactor.compactAll())
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(balanceSnapshotRepository.findLatest("user"))
+                .assertNext(snapshot -> assertThat(snapshot.getBalance()).isEqualByComparingTo("90.05"))
+                .verifyComplete();
+        StepVerifier.create(ledgerEntryRepository.findAll().filter(e -> !e.isCompacted()).count())
+                .expectNext(0L)
+                .verifyComplete();
+
+        // the next snapshot rolls the new entries onto the previous one and agrees with the maintained balance
+        StepVerifier.create(paymentRepository.completeTransfers(List.of(second), "completed", "insufficient", "\uD83D\uDE21", Instant.now()))
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(userRepository.findBalance("user"))
+                .assertNext(balance -> assertThat(balance).isEqualByComparingTo("70.05"))
+                .verifyComplete();
+        StepVerifier.create(userRepository.findBalance("admin"))
+                .assertNext(balance -> assertThat(balance).isEqualByComparingTo(adminBalance.add(new BigDecimal("30.05"))))
+                .verifyComplete();
+        StepVerifier.create(ledgerCompactor.compactAll())
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(balanceSnapshotRepository.findLatest("user"))
+                .assertNext(snapshot -> assertThat(snapshot.getBalance()).isEqualByComparingTo("70.05"))
+                .verifyComplete();
+        assertThat(meterRegistry.get("payment.ledger.drift").counter().count()).isEqualTo(drift);
+    }
+
+    @Test
+    void shouldCompleteEachTransferOfBatchOnItsOwn() {
+        Payment funded = waitingPayment("user", "admin", "60.00");
+        Payment unfunded = waitingPayment("user", "admin", "50.00");
+        Payment declined = waitingPayment("user", "admin", "1.00");
+        StepVerifier.create(paymentRepository.declinePayment(PaymentStatus.DECLINED, "declined", Instant.now(), declined.getRequestId()))
+                .assertNext(p -> assertThat(p.getStatus()).isEqualTo(PaymentStatus.DECLINED))
+                .verifyComplete();
+        // a payment that is no longer pending is not declined again
+        StepVerifier.create(paymentRepository.declinePayment(PaymentStatus.DECLINED, "declined again", Instant.now(), declined.getRequestId()))
+                .verifyComplete();
+
+        StepVerifier.create(paymentRepository.completeTransfers(List.of(funded, unfunded, declined), "completed", "insufficient", "\uD83D\uDE21", Instant.now())
+                        .collectMap(Payment::getRequestId, Payment::getStatus))
+                .assertNext(results -> assertThat(results).containsExactlyInAnyOrderEntriesOf(Map.of(
+                        funded.getRequestId(), PaymentStatus.COMPLETED,
+                        unfunded.getRequestId(), PaymentStatus.INSUFFICIENT_RESOURCES)))
+                .verifyComplete();
+        StepVerifier.create(paymentRepository.findByRequestId(declined.getRequestId()))
+                .assertNext(p -> assertThat(p.getStatus()).isEqualTo(PaymentStatus.DECLINED))
+                .verifyComplete();
+        StepVerifier.create(userRepository.findBalance("user"))
+                .assertNext(balance -> assertThat(balance).isEqualByComparingTo("40.10"))
+                .verifyComplete();
+    }
+
+    @Test
+    void shouldRestrictPaymentQueriesToOwnPaymentsUnlessAdmin() {
+        Payment foreign = waitingPayment("dummy_user", "admin", "1.00");
+        Payment own = waitingPayment("user", "admin", "1.00");
+        Authentication user = new UsernamePasswordAuthenticationToken("user", null, List.of(new SimpleGrantedAuthority("USER")));
+        Authentication admin = new UsernamePasswordAuthenticationToken("admin", null, List.of(new SimpleGrantedAuthority("ADMIN")));
+
+        StepVerifier.create(paymentService.findById(foreign.getRequestId()).contextWrite(ReactiveSecurityContextHolder.withAuthentication(user)))
+                .verifyComplete();
+        StepVerifier.create(paymentService.findById(own.getRequestId()).contextWrite(ReactiveSecurityContextHolder.withAuthentication(user)))
+                .assertNext(p -> assertThat(p.requestId()).isEqualTo(own.getRequestId()))
+                .verifyComplete();
+        StepVerifier.create(paymentService.findById(foreign.getRequestId()).contextWrite(ReactiveSecurityContextHolder.withAuthentication(admin)))
+                .assertNext(p -> assertThat(p.requestId()).isEqualTo(foreign.getRequestId()))
+                .verifyComplete();
+
+        // the dashboard always asks for the caller's own payments, the caller alone decides which rows that covers
+        StepVerifier.create(paymentService.getAllByUsernameFrom("user").map(c -> c.payment().requestId()).collectList()
+                        .contextWrite(ReactiveSecurityContextHolder.withAuthentication(user)))
+                .assertNext(ids -> assertThat(ids).contains(own.getRequestId()).doesNotContain(foreign.getRequestId()))
+                .verifyComplete();
+        StepVerifier.create(paymentService.getAllByUsernameFrom("admin").map(c -> c.payment().requestId()).collectList()
+                        .contextWrite(ReactiveSecurityContextHolder.withAuthentication(admin)))
+                .assertNext(ids -> assertThat(ids).contains(own.getRequestId(), foreign.getRequestId()))
+                .verifyComplete();
+        StepVerifier.create(paymentService.getPaymentsBefore(foreign.getRequestId(), 10)
+                        .contextWrite(ReactiveSecurityContextHolder.withAuthentication(user)))
+                .expectErrorSatisfies(e -> assertThat(e).isInstanceOf(ResponseStatusException.class))
+                .verify();
+        StepVerifier.create(paymentService.getPaymentsBefore(foreign.getRequestId(), 10)
+                        .contextWrite(ReactiveSecurityContextHolder.withAuthentication(admin)))
+                .thenConsumeWhile(p -> true)
+                .verifyComplete();
+    }
+
+    private Payment waitingPayment(String usernameFrom, String usernameTo, String total) {
+        Payment payment = new Payment(null, new RequestPaymentDto(UUID.randomUUID().toString(), new BigDecimal(total), usernameTo, Instant.now()), usernameFrom);
+        payment.setSanctionCheckProcessed(true);
+        payment.setAuthCheckProcessed(true);
+        payment.setUserConfirmationCheckProcessed(true);
+        payment.setStatus(PaymentStatus.WAITING_FOR_USER_CONFIRMATION);
+        return paymentRepository.save(payment).block();
+    }
+
+    @Test
+    void shouldSkipAlreadyProcessedUpdatePayment() {
+        Instant updateAt = Instant.now();
+        UpdatePayment updatePayment = new UpdatePayment(UUID.randomUUID().toString(), updateAt, null, CheckStatus.AUTH_CHECK, false);
+        UpdatePayment otherCheck = new UpdatePayment(updatePayment.getRequestId(), updateAt, null, CheckStatus.SANCTION_CHECK, false);
+
+        StepVerifier.create(updatePaymentDeduplicator.isProcessed(updatePayment))
+                .expectNext(false)
+                .verifyComplete();
+
+        StepVerifier.create(updatePaymentDeduplicator.markProcessed(List.of(updatePayment)))
+                .verifyComplete();
+
+        StepVerifier.create(updatePaymentDeduplicator.findProcessed(List.of(updatePayment, otherCheck)))
+                .expectNext(Set.of(UpdatePaymentDeduplicator.key(updatePayment)))
+                .verifyComplete();
+    }
+
+    @Test
+    void shouldCountRepeatedUpdatePaymentInBatchAsDuplicate() {
+        UpdatePayment updatePayment = new UpdatePayment(UUID.randomUUID().toString(), Instant.now(), null, CheckStatus.AUTH_CHECK, false);
+        double hits = meterRegistry.get("payment.update.dedupe").tag("result", "hit").counter().count();
+        double misses = meterRegistry.get("payment.update.dedupe").tag("result", "miss").counter().count();
+
+        StepVerifier.create(updatePaymentDeduplicator.findProcessed(List.of(updatePayment, updatePayment)))
+                .expectNext(Set.of())
+                .verifyComplete();
+
+        assertThat(meterRegistry.get("payment.update.dedupe").tag("result", "hit").counter().count()).isEqualTo(hits + 1);
+        assertThat(meterRegistry.get("payment.update.dedupe").tag("result", "miss").counter().count()).isEqualTo(misses + 1);
+    }
+
     @Test
     void shouldRegisterUser() {
         UUID requestId = UUID.randomUUID();
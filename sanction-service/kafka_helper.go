@@ -68,9 +68,12 @@ func ProcessMessages(kafkaAddress string, topic string, updateTopic string,
 		os.Exit(1)
 	}
 
+	// librdkafka defaults to consistent_random (crc32); murmur2_random matches the Java and KafkaJS
+	// producers, so every service sends a given requestId to the same partition of update-payment-topic
 	p, err := kafka.NewProducer(&kafka.ConfigMap{
 		"bootstrap.servers":  kafkaAddress,
-		"session.timeout.ms": 6000})
+		"session.timeout.ms": 6000,
+		"partitioner":        "murmur2_random"})
 
 	if err != nil {
 		log.Fatalln(os.Stderr, "Failed to create consumer: %s", err)
@@ -190,6 +193,7 @@ loop:
 
 					err = p.Produce(&kafka.Message{
 						TopicPartition: kafka.TopicPartition{Topic: &updateTopic, Partition: kafka.PartitionAny},
+						Key:            []byte(updatePayment.RequestId),
 						Value:          payload,
 						Headers:        e.Headers,
 					}, deliveryChan)
@@ -47,6 +47,8 @@ const KafkaAvro = require('kafkajs-avro').KafkaAvro;
     await consumer.connect()
     await consumer.subscribe({ topic: `${process.env.PAYMENT_TOPIC || 'payment-topic'}` })
 
+    // KafkaJS partitions keyed messages with murmur2 like the Java client; the Python and Go producers
+    // set partitioner=murmur2_random so a requestId lands on the same partition whichever service sends it
     const producer = kafka.avro.producer()
     await producer.connect()
 
@@ -111,6 +113,7 @@ const KafkaAvro = require('kafkajs-avro').KafkaAvro;
                  messages: [{
                      subject: "update-payment-topic-value",
                      version: "latest",
+                     key: updatePayment.requestId,
                      value: updatePayment,
                      headers: headers
                  }]